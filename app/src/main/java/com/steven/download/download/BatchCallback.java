@@ -0,0 +1,40 @@
+package com.steven.download.download;
+
+import java.io.File;
+
+/**
+ * 批量下载回调
+ */
+public interface BatchCallback {
+
+    /**
+     * 所有文件合并后的下载进度，所有文件的探测请求完成后才开始回调
+     *
+     * @param currentLength 所有文件已下载的长度
+     * @param totalLength   所有文件的总长度
+     */
+    void onProgress(long currentLength, long totalLength);
+
+    /**
+     * 一个文件下载成功
+     *
+     * @param file 下载成功文件
+     */
+    void onItemSuccess(File file);
+
+    /**
+     * 一个文件探测或者下载失败
+     *
+     * @param url 文件的下载地址
+     * @param e   异常
+     */
+    void onItemFailure(String url, Exception e);
+
+    /**
+     * 所有文件都已经结束，被暂停的文件既不算成功也不算失败
+     *
+     * @param successCount 成功的文件数
+     * @param failureCount 失败的文件数
+     */
+    void onFinish(int successCount, int failureCount);
+}
@@ -0,0 +1,121 @@
+package com.steven.download.download;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量下载的进度汇总：每个文件的进度合并成一个总进度回调，所有文件结束后回调onFinish
+ */
+class BatchProgress {
+    private final BatchCallback mCallback;
+    private final ProgressAggregator mProgressAggregator;
+    private final AtomicInteger mRemainingCount;
+    private final AtomicInteger mSuccessCount = new AtomicInteger();
+    private final AtomicInteger mFailureCount = new AtomicInteger();
+
+    /**
+     * @param count       文件数
+     * @param totalLength 所有文件的总长度
+     */
+    BatchProgress(int count, long totalLength, long interval, float step, final BatchCallback callback) {
+        this.mCallback = callback;
+        this.mRemainingCount = new AtomicInteger(count);
+        this.mProgressAggregator = new ProgressAggregator(0, totalLength, interval, step, new DownloadCallback() {
+            @Override
+            public void onStart(String fileName, int status) {
+            }
+
+            @Override
+            public void onProgress(long currentLength, long totalLength) {
+                callback.onProgress(currentLength, totalLength);
+            }
+
+            @Override
+            public void onSuccess(File file) {
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+            }
+
+            @Override
+            public void onPause(File file) {
+            }
+        });
+    }
+
+    /**
+     * 探测失败的文件，不会创建任务
+     */
+    void onProbeFailure(String url, Exception e) {
+        mCallback.onItemFailure(url, e);
+        mFailureCount.incrementAndGet();
+        onItemFinish();
+    }
+
+    /**
+     * 创建单个文件的回调，任务的进度是累计值，换算成增量后加到总进度
+     */
+    DownloadCallback newItemCallback(final String url) {
+        return new DownloadCallback() {
+            private long mLastLength;
+            private boolean isFinished;
+
+            @Override
+            public void onStart(String fileName, int status) {
+            }
+
+            @Override
+            public void onProgress(long currentLength, long totalLength) {
+                long length;
+                synchronized (this) {
+                    length = currentLength - mLastLength;
+                    mLastLength = currentLength;
+                }
+                if (length > 0) {
+                    mProgressAggregator.add(length);
+                }
+            }
+
+            @Override
+            public void onSuccess(File file) {
+                if (finish()) {
+                    mCallback.onItemSuccess(file);
+                    mSuccessCount.incrementAndGet();
+                    onItemFinish();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (finish()) {
+                    mCallback.onItemFailure(url, e);
+                    mFailureCount.incrementAndGet();
+                    onItemFinish();
+                }
+            }
+
+            @Override
+            public void onPause(File file) {
+                if (finish()) {
+                    onItemFinish();
+                }
+            }
+
+            private synchronized boolean finish() {
+                if (isFinished) {
+                    return false;
+                }
+                isFinished = true;
+                return true;
+            }
+        };
+    }
+
+    private void onItemFinish() {
+        if (mRemainingCount.decrementAndGet() == 0) {
+            mProgressAggregator.finish();
+            mCallback.onFinish(mSuccessCount.get(), mFailureCount.get());
+        }
+    }
+}
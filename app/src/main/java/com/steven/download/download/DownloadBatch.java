@@ -0,0 +1,86 @@
+package com.steven.download.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import okhttp3.HttpUrl;
+
+/**
+ * 批量下载的文件列表，通过 {@link DownloadDispatcher#startBatch(DownloadBatch, int, BatchCallback)} 一次提交
+ */
+public class DownloadBatch {
+    private final List<Entry> mEntries = new ArrayList<>();
+    /**
+     * 所有文件共用的tag，用于取消
+     */
+    private Object tag;
+
+    /**
+     * 添加一个文件
+     *
+     * @param folder 文件夹
+     * @param name   文件名
+     * @param url    下载的地址
+     * @return DownloadBatch
+     */
+    public DownloadBatch add(String folder, String name, String url) {
+        mEntries.add(new Entry(folder, name, url));
+        return this;
+    }
+
+    /**
+     * 设置所有文件共用的tag，可以通过 {@link DownloadDispatcher#cancel(Object)} 取消整个批次
+     *
+     * @return DownloadBatch
+     */
+    public DownloadBatch setTag(Object tag) {
+        this.tag = tag;
+        return this;
+    }
+
+    public Object getTag() {
+        return tag;
+    }
+
+    /**
+     * 文件数
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * 按域名分组的文件列表，同一个域名的探测请求连续发出，复用连接池中已经建立的连接
+     */
+    List<Entry> getEntriesByHost() {
+        List<Entry> entries = new ArrayList<>(mEntries);
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.host.compareTo(o2.host);
+            }
+        });
+        return entries;
+    }
+
+    static class Entry {
+        final String folder;
+        final String name;
+        final String url;
+        final String host;
+        /**
+         * 探测请求得到的文件信息，探测失败时为null
+         */
+        RemoteFile remoteFile;
+
+        Entry(String folder, String name, String url) {
+            this.folder = folder;
+            this.name = name;
+            this.url = url;
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            this.host = httpUrl == null ? "" : httpUrl.host();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.steven.download.download;
+
+/**
+ * 下载文件的校验值，下载过程中边写边计算，下载完成后校验不一致时回调onFailure并删除文件
+ */
+public class DownloadDigest {
+    /**
+     * 算法
+     */
+    private String algorithm;
+    /**
+     * 期望的校验值，十六进制
+     */
+    private String expected;
+
+    /**
+     * @param algorithm 算法 {@link Algorithm}
+     * @param expected  期望的校验值，十六进制，不区分大小写
+     */
+    public DownloadDigest(String algorithm, String expected) {
+        this.algorithm = algorithm;
+        this.expected = expected;
+    }
+
+    /**
+     * 获取算法
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * 获取期望的校验值
+     */
+    public String getExpected() {
+        return expected;
+    }
+
+    /**
+     * 校验值是否一致
+     */
+    boolean matches(String actual) {
+        return expected != null && expected.trim().equalsIgnoreCase(actual);
+    }
+
+    /**
+     * 校验算法
+     */
+    public interface Algorithm {
+        String MD5 = "MD5";
+        String SHA_1 = "SHA-1";
+        String SHA_256 = "SHA-256";
+        /**
+         * 整个文件的CRC32，8位十六进制
+         */
+        String CRC32 = "CRC32";
+    }
+}
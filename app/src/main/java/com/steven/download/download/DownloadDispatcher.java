@@ -5,52 +5,102 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.TransferExecutor;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
-import okhttp3.ResponseBody;
 
 /**
  * 下载调度器
  */
 public class DownloadDispatcher {
     private static volatile DownloadDispatcher sDownloadDispatcher;
-    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int THREAD_SIZE = Math.max(3, Math.min(CPU_COUNT - 1, 5));
-    /**
-     * 核心线程数
-     */
-    private static final int CORE_POOL_SIZE = THREAD_SIZE;
     /**
      * 同时下载的最大任务数
      */
     private int maxTaskSize = 3;
     /**
-     * 线程池
+     * 单个任务最多同时使用的连接数，实际连接数由任务根据下载速度调整
+     */
+    private int maxThreadSize = 8;
+    /**
+     * 服务器是HTTP/2时单个任务最多同时下载的区间数，所有区间作为流复用同一个连接
+     */
+    private int maxStreamSize = 16;
+    /**
+     * 文件大小超过该值时预先分配文件并使用内存映射写入，默认不使用
+     */
+    private long mappedWriteThreshold = Long.MAX_VALUE;
+    /**
+     * 文件大小小于该值时一个连接顺序下载，不拆分区间，不写断点日志
+     */
+    private long smallFileThreshold = 1024 * 1024;
+    /**
+     * 进度回调的最小时间间隔 ms
+     */
+    private long progressInterval = 200;
+    /**
+     * 进度增加超过该比例时不等时间间隔直接回调
+     */
+    private float progressStep = 0.01f;
+    /**
+     * 下载引擎
      */
-    private ExecutorService mExecutorService;
+    private int engine = DownloadEngine.ENGINE_THREAD;
     /**
-     * 准备下载的任务
+     * 区间连续失败后的最大重试次数
      */
-    private final Deque<DownloadTask> readyTasks = new ArrayDeque<>();
+    private int retryCount = 3;
+    /**
+     * 第一次重试前等待的时间 ms，之后每次翻倍
+     */
+    private long retryDelay = 500;
+    /**
+     * 重试等待时间的上限 ms
+     */
+    private long maxRetryDelay = 10000;
+    /**
+     * 准备下载的任务，按优先级排序，同优先级先进先出，OkHttp回调线程和下载线程都会修改
+     */
+    private final Queue<DownloadTask> readyTasks = new PriorityBlockingQueue<>(11, new Comparator<DownloadTask>() {
+        @Override
+        public int compare(DownloadTask o1, DownloadTask o2) {
+            if (o1.getPriority() != o2.getPriority()) {
+                return o1.getPriority() > o2.getPriority() ? -1 : 1;
+            }
+            return o1.getSequence() < o2.getSequence() ? -1 : (o1.getSequence() == o2.getSequence() ? 0 : 1);
+        }
+    });
     /**
      * 正在下载的任务
      */
-    private final Deque<DownloadTask> runningTasks = new ArrayDeque<>();
+    private final Queue<DownloadTask> runningTasks = new ConcurrentLinkedQueue<>();
+    /**
+     * 正在下载的任务数，通过CAS占用和释放，不超过maxTaskSize
+     */
+    private final AtomicInteger runningCount = new AtomicInteger();
+    /**
+     * 任务进入等待队列的顺序
+     */
+    private final AtomicLong sequence = new AtomicLong();
 
     private DownloadDispatcher() {
+        applyConnectionSize();
     }
 
     /**
@@ -77,27 +127,153 @@ public class DownloadDispatcher {
      */
     public DownloadDispatcher setMaxTaskSize(int maxTaskSize) {
         this.maxTaskSize = maxTaskSize < 1 ? 1 : (maxTaskSize > 5 ? 5 : maxTaskSize);
+        applyConnectionSize();
         return this;
     }
 
     /**
-     * 创建线程池
+     * 设置单个任务最多同时使用的连接数 默认为8，任务从少量连接开始，速度不再提升时停止增加
      *
-     * @return mExecutorService
+     * @param maxThreadSize 最大连接数
+     * @return
      */
-    public synchronized ExecutorService executorService() {
-        if (mExecutorService == null) {
-            mExecutorService = new ThreadPoolExecutor(CORE_POOL_SIZE, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
-                @Override
-                public Thread newThread(@NonNull Runnable r) {
-                    Thread thread = new Thread(r);
-                    thread.setDaemon(false);
-                    return thread;
-                }
-            });
-        }
-        return mExecutorService;
+    public DownloadDispatcher setMaxThreadSize(int maxThreadSize) {
+        this.maxThreadSize = maxThreadSize < 1 ? 1 : (maxThreadSize > 16 ? 16 : maxThreadSize);
+        applyConnectionSize();
+        return this;
+    }
+
+    /**
+     * 设置服务器是HTTP/2时单个任务最多同时下载的区间数 默认为16。所有区间作为流复用同一个连接，
+     * 区间数不再受连接数限制，省去每个连接的TCP和TLS握手，流的数量超过服务器的并发限制时OkHttp才会建立新连接。
+     * 不加密的HTTP/2需要通过 {@link OkHttpManager#addHttp2PriorKnowledgeHost(String)} 指定
+     *
+     * @param maxStreamSize 最大区间数
+     * @return
+     */
+    public DownloadDispatcher setMaxStreamSize(int maxStreamSize) {
+        this.maxStreamSize = maxStreamSize < 1 ? 1 : (maxStreamSize > 32 ? 32 : maxStreamSize);
+        applyConnectionSize();
+        return this;
+    }
+
+    /**
+     * 按最大任务数和单个任务的连接数设置OkHttp的连接池和同一个服务器的请求数，HTTP/2时每个区间也占用一个请求
+     */
+    private void applyConnectionSize() {
+        OkHttpManager.setDownloadConnectionSize(maxTaskSize * Math.max(maxThreadSize, maxStreamSize));
+    }
+
+    /**
+     * 设置使用内存映射写入的文件大小，超过该大小的文件预先分配空间，每个下载线程写入自己映射的窗口
+     *
+     * @param mappedWriteThreshold 文件大小，Long.MAX_VALUE 表示不使用
+     * @return
+     */
+    public DownloadDispatcher setMappedWriteThreshold(long mappedWriteThreshold) {
+        this.mappedWriteThreshold = mappedWriteThreshold;
+        return this;
+    }
+
+    /**
+     * 设置小文件的大小，小于该大小的文件用探测请求的一个连接直接顺序写入，不拆分区间，不写断点日志，暂停后从头下载；
+     * 更大的文件先用少量连接，再根据实测速度增加连接
+     *
+     * @param smallFileThreshold 文件大小，默认1MB，0 表示所有文件都按区间下载
+     * @return
+     */
+    public DownloadDispatcher setSmallFileThreshold(long smallFileThreshold) {
+        this.smallFileThreshold = Math.max(0, smallFileThreshold);
+        return this;
+    }
+
+    /**
+     * 设置进度回调的频率，所有下载线程的进度合并后，满足时间间隔或者进度步长才回调一次，下载结束时回调准确的最终进度
+     *
+     * @param interval 最小时间间隔 ms，默认200
+     * @param step     进度步长 0~1，默认0.01
+     * @return
+     */
+    public DownloadDispatcher setProgressRate(long interval, float step) {
+        this.progressInterval = Math.max(0, interval);
+        this.progressStep = Math.max(0, Math.min(step, 1));
+        return this;
+    }
+
+    /**
+     * 设置下载引擎，ENGINE_NIO 时http的区间由少量事件循环线程下载，https仍然使用线程池
+     *
+     * @param engine {@link DownloadEngine}
+     * @return
+     */
+    public DownloadDispatcher setEngine(int engine) {
+        this.engine = engine == DownloadEngine.ENGINE_NIO ? DownloadEngine.ENGINE_NIO : DownloadEngine.ENGINE_THREAD;
+        return this;
+    }
+
+    int getEngine() {
+        return engine;
+    }
+
+    /**
+     * 设置区间下载失败后的重试策略，从失败的位置继续下载，等待时间指数增长并加入随机抖动，
+     * 连续失败超过重试次数后任务才失败，重新读到数据后重置次数
+     *
+     * @param retryCount    最大重试次数 0-10，默认3，0 表示不重试
+     * @param retryDelay    第一次重试前等待的时间 ms，默认500
+     * @param maxRetryDelay 等待时间的上限 ms，默认10000
+     * @return
+     */
+    public DownloadDispatcher setRetryPolicy(int retryCount, long retryDelay, long maxRetryDelay) {
+        this.retryCount = retryCount < 0 ? 0 : (retryCount > 10 ? 10 : retryCount);
+        this.retryDelay = Math.max(0, retryDelay);
+        this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+        return this;
+    }
+
+    int getRetryCount() {
+        return retryCount;
+    }
+
+    long getRetryDelay() {
+        return retryDelay;
+    }
+
+    long getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    int getMaxThreadSize() {
+        return maxThreadSize;
+    }
+
+    int getMaxStreamSize() {
+        return maxStreamSize;
+    }
+
+    long getMappedWriteThreshold() {
+        return mappedWriteThreshold;
+    }
+
+    long getSmallFileThreshold() {
+        return smallFileThreshold;
+    }
+
+    long getProgressInterval() {
+        return progressInterval;
+    }
+
+    float getProgressStep() {
+        return progressStep;
+    }
+
+    /**
+     * 下载和上传共用的线程池，线程数通过TransferExecutor设置
+     *
+     * @return ExecutorService
+     */
+    public ExecutorService executorService() {
+        return TransferExecutor.getInstance().executorService();
     }
 
     /**
@@ -136,7 +312,62 @@ public class DownloadDispatcher {
      * @param callBack 回调接口
      */
     public void startDownload(final String folder, final String name, final String url, final Object tag, final DownloadCallback callBack) {
-        Call call = OkHttpManager.getInstance().asyncCall(url);
+        startDownload(folder, name, url, tag, DownloadTask.DownloadPriority.PRIORITY_NORMAL, callBack);
+    }
+
+    /**
+     * @param folder   文件夹
+     * @param name     文件名
+     * @param url      下载的地址
+     * @param priority 优先级 {@link DownloadTask.DownloadPriority}，名额已满时会抢占优先级更低的正在下载的任务
+     * @param callBack 回调接口
+     */
+    public void startDownload(final String folder, final String name, final String url, final Object tag, final int priority, final DownloadCallback callBack) {
+        startDownload(folder, name, url, tag, priority, null, callBack);
+    }
+
+    /**
+     * @param folder   文件夹
+     * @param name     文件名
+     * @param url      下载的地址
+     * @param priority 优先级 {@link DownloadTask.DownloadPriority}
+     * @param digest   期望的校验值，下载过程中边写边计算，不一致时回调onFailure，为null时不校验
+     * @param callBack 回调接口
+     */
+    public void startDownload(final String folder, final String name, final String url, final Object tag, final int priority,
+                              final DownloadDigest digest, final DownloadCallback callBack) {
+        probe(folder, name, Collections.singletonList(url), tag, priority, digest, callBack, 0);
+    }
+
+    /**
+     * 从多个镜像同时下载同一个文件，区间按各镜像的实测速度分配，失败或者文件不一致的镜像不再使用
+     *
+     * @param folder   文件夹
+     * @param name     文件名
+     * @param urls     镜像地址，第一个地址用于探测文件信息，其它镜像的文件大小和ETag要和它一致
+     * @param priority 优先级 {@link DownloadTask.DownloadPriority}
+     * @param digest   期望的校验值，为null时不校验
+     * @param callBack 回调接口
+     */
+    public void startDownload(final String folder, final String name, final List<String> urls, final Object tag, final int priority,
+                              final DownloadDigest digest, final DownloadCallback callBack) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("urls is empty");
+        }
+        probe(folder, name, new ArrayList<>(urls), tag, priority, digest, callBack, 0);
+    }
+
+    /**
+     * 发送探测请求，得到文件信息后创建任务
+     *
+     * @param urls         镜像地址，探测第一个地址
+     * @param restartCount 远程文件改变后重新开始的次数
+     */
+    void probe(final String folder, final String name, final List<String> urls, final Object tag, final int priority,
+               final DownloadDigest digest, final DownloadCallback callBack, final int restartCount) {
+        final String url = urls.get(0);
+        //探测请求同时得到文件大小、是否支持断点和ETag，响应体直接作为第一个区间，不浪费一次请求
+        Call call = OkHttpManager.getInstance().asyncProbeCall(url);
         call.enqueue(new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
@@ -145,36 +376,212 @@ public class DownloadDispatcher {
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) {
+                if (!response.isSuccessful()) {
+                    response.close();
+                    callBack.onFailure(new IOException("probe failed, code " + response.code() + ", url " + url));
+                    return;
+                }
                 //获取文件的大小
-                ResponseBody responseBody = response.body();
-                long contentLength = responseBody == null ? -1 : responseBody.contentLength();
-                if (contentLength <= -1) {
+                RemoteFile remoteFile = RemoteFile.parse(response);
+                if (remoteFile.contentLength <= 0) {
+                    response.close();
+                    callBack.onFailure(new IOException("unknown content length, url " + url));
                     return;
                 }
-                DownloadTask downloadTask = new DownloadTask(folder, name, url, THREAD_SIZE, contentLength, tag, callBack);
+                DownloadTask downloadTask = new DownloadTask(folder, name, urls, remoteFile, digest, tag, callBack);
+                downloadTask.setPriority(priority);
+                downloadTask.setRestartCount(restartCount);
                 // 将任务加入下载队列
-                if (runningTasks.size() < maxTaskSize) {
-                    runningTasks.addLast(downloadTask);
+                if (tryAcquireSlot()) {
+                    runningTasks.offer(downloadTask);
                     callBack.onStart(name, DownloadTask.DownloadStatus.STATUS_DOWNLOADING);
-                    downloadTask.init();
+                    downloadTask.init(response);
                 } else {
+                    //等待期间不能占着连接
+                    response.close();
                     callBack.onStart(name, DownloadTask.DownloadStatus.STATUS_WAITING);
-                    readyTasks.addLast(downloadTask);
+                    offerReadyTask(downloadTask);
+                    preemptFor(downloadTask);
+                    //入队期间可能有任务结束释放了名额，重新检查一次，避免任务一直等待
+                    promoteReadyTasks();
                 }
             }
         });
     }
 
+    /**
+     * 批量下载，适合大量小文件。所有文件的HEAD探测请求并行发出，同一个域名的请求连续发出以复用连接池中的连接；
+     * 探测全部完成后一起加入下载队列，进度合并成一个总进度回调
+     *
+     * @param batch    文件列表
+     * @param priority 优先级 {@link DownloadTask.DownloadPriority}
+     * @param callBack 批量回调
+     */
+    public void startBatch(final DownloadBatch batch, final int priority, final BatchCallback callBack) {
+        final List<DownloadBatch.Entry> entries = batch.getEntriesByHost();
+        if (entries.isEmpty()) {
+            callBack.onFinish(0, 0);
+            return;
+        }
+        final AtomicInteger remainingProbes = new AtomicInteger(entries.size());
+        for (final DownloadBatch.Entry entry : entries) {
+            //HEAD没有响应体，响应结束后连接立即回到连接池，后面的探测和区间请求直接复用
+            Call call = OkHttpManager.getInstance().asyncHeadCall(entry.url);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    onProbed();
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    if (response.isSuccessful()) {
+                        entry.remoteFile = RemoteFile.parse(response);
+                    }
+                    response.close();
+                    onProbed();
+                }
+
+                private void onProbed() {
+                    if (remainingProbes.decrementAndGet() == 0) {
+                        admitBatch(batch, entries, priority, callBack);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 探测全部完成，创建任务一起加入下载队列
+     */
+    private void admitBatch(DownloadBatch batch, List<DownloadBatch.Entry> entries, int priority, BatchCallback callBack) {
+        long totalLength = 0;
+        for (DownloadBatch.Entry entry : entries) {
+            if (entry.remoteFile != null && entry.remoteFile.contentLength > 0) {
+                totalLength += entry.remoteFile.contentLength;
+            }
+        }
+        BatchProgress batchProgress = new BatchProgress(entries.size(), totalLength, progressInterval, progressStep, callBack);
+        for (DownloadBatch.Entry entry : entries) {
+            if (entry.remoteFile == null || entry.remoteFile.contentLength <= 0) {
+                batchProgress.onProbeFailure(entry.url, new IOException("probe failed, url " + entry.url));
+                continue;
+            }
+            DownloadTask downloadTask = new DownloadTask(entry.folder, entry.name, Collections.singletonList(entry.url), entry.remoteFile,
+                    null, batch.getTag(), batchProgress.newItemCallback(entry.url));
+            downloadTask.setPriority(priority);
+            offerReadyTask(downloadTask);
+        }
+        promoteReadyTasks();
+    }
+
     /**
      * @param downLoadTask 下载任务
      */
     void recyclerTask(DownloadTask downLoadTask) {
-        runningTasks.remove(downLoadTask);
-        //从readyTask中取出一个任务加入到runningTask队列中，并开始任务
-        DownloadTask task = readyTasks.peekFirst();
-        if (task != null) {
-            readyTasks.remove(task);
-            runningTasks.addLast(task);
+        if (runningTasks.remove(downLoadTask)) {
+            runningCount.decrementAndGet();
+        }
+        promoteReadyTasks();
+    }
+
+    /**
+     * 被抢占的任务暂停后重新排队，保留原来的顺序，同优先级中最先恢复
+     *
+     * @param downloadTask 下载任务
+     */
+    void requeueTask(DownloadTask downloadTask) {
+        if (runningTasks.remove(downloadTask)) {
+            runningCount.decrementAndGet();
+        }
+        downloadTask.prepareRequeue();
+        offerReadyTask(downloadTask);
+        promoteReadyTasks();
+    }
+
+    /**
+     * 加入等待队列
+     */
+    private void offerReadyTask(DownloadTask downloadTask) {
+        if (downloadTask.getSequence() == 0) {
+            downloadTask.setSequence(sequence.incrementAndGet());
+        }
+        readyTasks.offer(downloadTask);
+    }
+
+    /**
+     * 名额已满时，暂停优先级最低的正在下载的任务，把名额让给优先级更高的任务，被暂停的任务从断点继续
+     *
+     * @param downloadTask 等待下载的任务
+     */
+    private void preemptFor(DownloadTask downloadTask) {
+        DownloadTask victim = null;
+        for (DownloadTask task : runningTasks) {
+            if (task.isPreempted() || task.getPriority() >= downloadTask.getPriority()) {
+                continue;
+            }
+            //优先级相同时抢占最后开始的任务
+            if (victim == null || task.getPriority() < victim.getPriority()
+                    || (task.getPriority() == victim.getPriority() && task.getSequence() > victim.getSequence())) {
+                victim = task;
+            }
+        }
+        if (victim != null) {
+            victim.preempt();
+        }
+    }
+
+    /**
+     * 修改任务的优先级，等待中的任务重新排序，优先级提高后可以抢占正在下载的任务
+     *
+     * @param url      下载的地址
+     * @param priority 优先级 {@link DownloadTask.DownloadPriority}
+     */
+    public void setPriority(String url, int priority) {
+        for (DownloadTask task : runningTasks) {
+            if (task.getUrl().equals(url)) {
+                task.setPriority(priority);
+            }
+        }
+        for (DownloadTask task : readyTasks) {
+            if (task.getUrl().equals(url) && readyTasks.remove(task)) {
+                task.setPriority(priority);
+                readyTasks.offer(task);
+                preemptFor(task);
+            }
+        }
+        promoteReadyTasks();
+    }
+
+    /**
+     * 占用一个正在下载的名额
+     *
+     * @return false 名额已满
+     */
+    private boolean tryAcquireSlot() {
+        while (true) {
+            int count = runningCount.get();
+            if (count >= maxTaskSize) {
+                return false;
+            }
+            if (runningCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 有空闲名额时从readyTask中取出任务加入到runningTask队列中，并开始任务
+     */
+    private void promoteReadyTasks() {
+        while (!readyTasks.isEmpty() && tryAcquireSlot()) {
+            DownloadTask task = readyTasks.poll();
+            if (task == null) {
+                //任务被其它线程取走了，归还名额
+                runningCount.decrementAndGet();
+                continue;
+            }
+            runningTasks.offer(task);
             task.init();
         }
     }
@@ -222,36 +629,55 @@ public class DownloadDispatcher {
      * @param tag
      */
     public void cancel(Object tag) {
-        cancelTasks(runningTasks, tag);
-        cancelTasks(readyTasks, tag);
+        cancelTasks(runningTasks, tag, false);
+        cancelTasks(readyTasks, tag, true);
     }
 
     /**
      * 取消所有的下载，包括正在下载和准备下载
      */
     public void cancelAll() {
-        cancelTasks(runningTasks, null);
-        cancelTasks(readyTasks, null);
+        cancelTasks(runningTasks, null, false);
+        cancelTasks(readyTasks, null, true);
     }
 
     /**
      * 删除任务
      *
      * @param collections
+     * @param isRemove    是否从队列中移除，正在下载的任务停止后由recyclerTask移除并释放名额
      */
-    private void cancelTasks(Collection<DownloadTask> collections, Object tag) {
+    private void cancelTasks(Collection<DownloadTask> collections, Object tag, boolean isRemove) {
         Iterator<DownloadTask> it = collections.iterator();
         while (it.hasNext()) {
             DownloadTask task = it.next();
             if (tag != null) {
                 if (task.getTag() != null && task.getTag().equals(tag)) {
                     task.stopDownload();
-                    it.remove();
+                    if (isRemove) {
+                        it.remove();
+                    }
                 }
             } else {
                 task.stopDownload();
-                it.remove();
+                if (isRemove) {
+                    it.remove();
+                }
             }
         }
     }
+
+    /**
+     * 下载引擎
+     */
+    public interface DownloadEngine {
+        /**
+         * 每个连接一个线程，阻塞读取
+         */
+        int ENGINE_THREAD = 1;
+        /**
+         * 非阻塞读取，少量事件循环线程处理所有连接，只支持http/1.1，HTTP/2的服务器仍然使用线程池
+         */
+        int ENGINE_NIO = 2;
+    }
 }
@@ -0,0 +1,256 @@
+package com.steven.download.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 下载保存的文件和它的断点日志，一个任务的所有下载线程共用一个FileChannel，按位置写入互不影响。
+ * 不使用"rwd"模式每次写入都同步到磁盘，而是由下载线程定期调用force()，之后再把进度记录到断点日志
+ */
+class DownloadFile implements Closeable {
+    /**
+     * 内存映射模式下每个线程映射的窗口大小，避免大文件占满32位进程的地址空间
+     */
+    private static final long MAPPED_WINDOW_SIZE = 32 * 1024 * 1024;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mFileChannel;
+    /**
+     * 断点日志
+     */
+    private DownloadJournal mJournal;
+    /**
+     * 是否使用内存映射写入
+     */
+    private boolean isMapped;
+    /**
+     * 正在使用文件的线程数，为0时关闭文件
+     */
+    private int mReferenceCount = 1;
+
+    /**
+     * @param file          保存的文件
+     * @param contentLength 文件的大小
+     * @param validator     远程文件的ETag或Last-Modified，可能为null
+     * @param isMapped      是否使用内存映射写入，使用时预先分配文件大小
+     */
+    DownloadFile(File file, long contentLength, String validator, boolean isMapped) throws IOException {
+        this.mJournal = new DownloadJournal(new File(file.getParentFile(), "." + file.getName() + ".journal"), contentLength, validator);
+        this.mRandomAccessFile = new RandomAccessFile(file, "rw");
+        this.mFileChannel = mRandomAccessFile.getChannel();
+        this.isMapped = isMapped;
+        //重新下载时旧文件可能更长，截掉多余的部分
+        if (mJournal.isNew() && mRandomAccessFile.length() > contentLength) {
+            mRandomAccessFile.setLength(contentLength);
+        }
+        if (isMapped && mRandomAccessFile.length() != contentLength) {
+            mRandomAccessFile.setLength(contentLength);
+        }
+    }
+
+    /**
+     * 下载线程开始使用文件
+     */
+    synchronized void retain() {
+        mReferenceCount++;
+    }
+
+    /**
+     * 下载线程不再使用文件，最后一个使用者释放时关闭文件
+     *
+     * @return true 文件已关闭
+     */
+    boolean release() {
+        synchronized (this) {
+            if (--mReferenceCount > 0) {
+                return false;
+            }
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * 每个下载线程使用自己的Writer写入
+     */
+    Writer newWriter() {
+        return isMapped ? new MappedWriter() : new ChannelWriter();
+    }
+
+    /**
+     * 从position开始读取，用于校验
+     *
+     * @return 读取的长度，-1 表示已经到文件末尾
+     */
+    int read(ByteBuffer buffer, long position) throws IOException {
+        return mFileChannel.read(buffer, position);
+    }
+
+    /**
+     * 断点日志
+     */
+    DownloadJournal getJournal() {
+        return mJournal;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mJournal.close();
+        mFileChannel.close();
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * 写入文件
+     */
+    interface Writer {
+        /**
+         * 从position开始写入buffer中剩余的数据
+         *
+         * @return 写入的长度
+         */
+        int write(ByteBuffer buffer, long position) throws IOException;
+
+        /**
+         * 把写入的数据同步到磁盘
+         */
+        void force() throws IOException;
+    }
+
+    /**
+     * 按位置写入共用的FileChannel
+     */
+    private class ChannelWriter implements Writer {
+
+        @Override
+        public int write(ByteBuffer buffer, long position) throws IOException {
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                length += mFileChannel.write(buffer, position + length);
+            }
+            return length;
+        }
+
+        @Override
+        public void force() throws IOException {
+            mFileChannel.force(false);
+        }
+    }
+
+    /**
+     * 立即释放映射的内存，不等到被回收。没有公开的接口，依次尝试Android、Java 9以上和Java 8的实现，都失败时等待回收
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            buffer.getClass().getMethod("free").invoke(buffer);
+            return;
+        } catch (Exception e) {
+            //不是Android的DirectByteBuffer
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            //Java 8没有invokeCleaner
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 写入线程自己映射的窗口，每次写入不需要系统调用，分页交给内核，检查点时再同步到磁盘
+     */
+    private class MappedWriter implements Writer {
+        private MappedByteBuffer mWindow;
+        /**
+         * 窗口在文件中的开始位置
+         */
+        private long mWindowStart;
+        /**
+         * 映射失败后改为按位置写入
+         */
+        private ChannelWriter mFallback;
+
+        @Override
+        public int write(ByteBuffer buffer, long position) throws IOException {
+            if (mFallback != null) {
+                return mFallback.write(buffer, position);
+            }
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                long current = position + length;
+                if (mWindow == null || current < mWindowStart || current >= mWindowStart + mWindow.capacity()) {
+                    if (!map(current)) {
+                        return length + mFallback.write(buffer, current);
+                    }
+                }
+                mWindow.position((int) (current - mWindowStart));
+                int count = Math.min(buffer.remaining(), mWindow.remaining());
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + count);
+                mWindow.put(slice);
+                buffer.position(buffer.position() + count);
+                length += count;
+            }
+            return length;
+        }
+
+        /**
+         * 映射从position开始的窗口，换窗口前先同步并释放旧窗口，旧窗口不会一直占着地址空间
+         *
+         * @return false 映射失败，一般是地址空间不足，之后改为按位置写入
+         */
+        private boolean map(long position) throws IOException {
+            force();
+            if (mWindow != null) {
+                MappedByteBuffer window = mWindow;
+                mWindow = null;
+                unmap(window);
+            }
+            long size = Math.min(MAPPED_WINDOW_SIZE, mFileChannel.size() - position);
+            if (size <= 0) {
+                throw new IOException("position " + position + " is out of file length " + mFileChannel.size());
+            }
+            try {
+                mWindow = mFileChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            } catch (IOException e) {
+                e.printStackTrace();
+                mFallback = new ChannelWriter();
+                return false;
+            }
+            mWindowStart = position;
+            return true;
+        }
+
+        @Override
+        public void force() throws IOException {
+            if (mWindow != null) {
+                mWindow.force();
+            }
+            if (mFallback != null) {
+                mFallback.force();
+            }
+        }
+    }
+}
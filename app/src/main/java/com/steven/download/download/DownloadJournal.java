@@ -0,0 +1,270 @@
+package com.steven.download.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 断点日志，一个任务只有一个 .name.journal 文件，代替每个线程一个的断点文件。
+ * <p>
+ * 文件格式：256字节的文件头(magic、version、文件大小、ETag或Last-Modified)，后面是固定大小的槽位，每个槽位记录一个未下载完的区间。
+ * 每个槽位有两份记录，轮流覆盖，记录带序号和CRC32，写到一半时进程被杀也至少有一份完整的记录
+ */
+class DownloadJournal implements Closeable {
+    private static final int MAGIC = 0x4D544446;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 256;
+    /**
+     * 校验值的最大长度，超过时不保存，续传时不校验
+     */
+    private static final int MAX_VALIDATOR_SIZE = HEADER_SIZE - 18;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * 一份记录：seq(8) + start(8) + end(8) + crc(4) + 补齐(4)
+     */
+    private static final int RECORD_SIZE = 32;
+    private static final int SLOT_SIZE = RECORD_SIZE * 2;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mFileChannel;
+    /**
+     * 每个槽位最新的记录 {seq, start, end}，start > end 表示空闲
+     */
+    private List<long[]> mSlots = new ArrayList<>();
+    /**
+     * 是否是新建的日志
+     */
+    private boolean isNew;
+    /**
+     * 创建日志时远程文件的ETag或Last-Modified
+     */
+    private String mValidator;
+    private ByteBuffer mRecordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private CRC32 mCrc32 = new CRC32();
+
+    /**
+     * 打开日志，文件不存在、和文件大小不匹配或者远程文件已经改变时重新创建
+     *
+     * @param file          日志文件
+     * @param contentLength 下载文件的大小
+     * @param validator     远程文件当前的ETag或Last-Modified，可能为null
+     */
+    DownloadJournal(File file, long contentLength, String validator) throws IOException {
+        this.mFile = file;
+        this.mRandomAccessFile = new RandomAccessFile(file, "rw");
+        this.mFileChannel = mRandomAccessFile.getChannel();
+        byte[] bytes = validator == null ? new byte[0] : validator.getBytes(UTF_8);
+        this.mValidator = bytes.length > MAX_VALIDATOR_SIZE ? null : validator;
+        if (!load(contentLength)) {
+            reset(contentLength);
+        }
+    }
+
+    /**
+     * 一次读出整个日志
+     *
+     * @return false 日志不存在或者已损坏
+     */
+    private boolean load(long contentLength) throws IOException {
+        long size = mFileChannel.size();
+        if (size < HEADER_SIZE || (size - HEADER_SIZE) % SLOT_SIZE != 0) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (mFileChannel.read(buffer, buffer.position()) == -1) {
+                return false;
+            }
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != contentLength) {
+            return false;
+        }
+        byte[] bytes = new byte[Math.min(buffer.getShort() & 0xffff, MAX_VALIDATOR_SIZE)];
+        buffer.get(bytes);
+        String validator = bytes.length == 0 ? null : new String(bytes, UTF_8);
+        //两次都有校验值且不一致，说明远程文件已经改变，不能拼接两个版本
+        if (validator != null && mValidator != null && !validator.equals(mValidator)) {
+            return false;
+        }
+        if (mValidator == null) {
+            mValidator = validator;
+        }
+        int slotCount = (int) ((size - HEADER_SIZE) / SLOT_SIZE);
+        if (slotCount == 0) {
+            //写完文件头、还没记录第一个区间时进程被杀，当作新的日志，否则会被当成已经下载完成
+            return false;
+        }
+        for (int i = 0; i < slotCount; i++) {
+            long[] first = readRecord(buffer, HEADER_SIZE + i * SLOT_SIZE);
+            long[] second = readRecord(buffer, HEADER_SIZE + i * SLOT_SIZE + RECORD_SIZE);
+            long[] record = first == null ? second : (second == null || first[0] > second[0] ? first : second);
+            if (record == null) {
+                return false;
+            }
+            mSlots.add(record);
+        }
+        return true;
+    }
+
+    /**
+     * 读取一份记录
+     *
+     * @return {seq, start, end}，校验失败返回null
+     */
+    private long[] readRecord(ByteBuffer buffer, int offset) {
+        long seq = buffer.getLong(offset);
+        long start = buffer.getLong(offset + 8);
+        long end = buffer.getLong(offset + 16);
+        int crc = buffer.getInt(offset + 24);
+        if (crc != checksum(seq, start, end)) {
+            return null;
+        }
+        return new long[]{seq, start, end};
+    }
+
+    private int checksum(long seq, long start, long end) {
+        ByteBuffer buffer = ByteBuffer.allocate(24);
+        buffer.putLong(seq).putLong(start).putLong(end);
+        mCrc32.reset();
+        mCrc32.update(buffer.array(), 0, 24);
+        return (int) mCrc32.getValue();
+    }
+
+    /**
+     * 清空日志，重新写文件头
+     */
+    synchronized void reset(long contentLength) throws IOException {
+        mSlots.clear();
+        mFileChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        byte[] bytes = mValidator == null ? new byte[0] : mValidator.getBytes(UTF_8);
+        header.putInt(MAGIC).putInt(VERSION).putLong(contentLength).putShort((short) bytes.length).put(bytes);
+        header.clear();
+        write(header, 0);
+        isNew = true;
+    }
+
+    /**
+     * 是否是新建的日志，新建的日志没有任何区间；已有的日志没有未下载的区间说明文件已经下载完成
+     */
+    boolean isNew() {
+        return isNew;
+    }
+
+    /**
+     * 远程文件的ETag或Last-Modified，续传时作为If-Range发送
+     *
+     * @return 没有校验值时返回null
+     */
+    String getValidator() {
+        return mValidator;
+    }
+
+    /**
+     * 未下载完成的区间
+     *
+     * @return {start, end, slot} 的集合
+     */
+    synchronized List<long[]> getRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < mSlots.size(); i++) {
+            long[] slot = mSlots.get(i);
+            if (slot[1] <= slot[2]) {
+                ranges.add(new long[]{slot[1], slot[2], i});
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * 为新的区间分配槽位并记录，优先复用空闲的槽位
+     *
+     * @return 槽位
+     */
+    synchronized int newSlot(long start, long end) throws IOException {
+        int index = mSlots.size();
+        for (int i = 0; i < mSlots.size(); i++) {
+            long[] slot = mSlots.get(i);
+            if (slot[1] > slot[2]) {
+                index = i;
+                break;
+            }
+        }
+        if (index == mSlots.size()) {
+            mSlots.add(new long[]{0, 1, 0});
+        }
+        record(index, start, end);
+        return index;
+    }
+
+    /**
+     * 记录槽位的区间，覆盖序号较旧的那份记录
+     */
+    synchronized void record(int index, long start, long end) throws IOException {
+        long[] slot = mSlots.get(index);
+        long seq = slot[0] + 1;
+        mRecordBuffer.clear();
+        mRecordBuffer.putLong(seq).putLong(start).putLong(end).putInt(checksum(seq, start, end)).putInt(0);
+        mRecordBuffer.flip();
+        write(mRecordBuffer, HEADER_SIZE + (long) index * SLOT_SIZE + (seq % 2) * RECORD_SIZE);
+        slot[0] = seq;
+        slot[1] = start;
+        slot[2] = end;
+    }
+
+    /**
+     * 只修改槽位区间的结束位置，开始位置保持上次记录的值
+     */
+    synchronized void recordEnd(int index, long end) throws IOException {
+        record(index, mSlots.get(index)[1], end);
+    }
+
+    /**
+     * 区间下载完成，释放槽位
+     */
+    synchronized void free(int index) throws IOException {
+        long[] slot = mSlots.get(index);
+        record(index, slot[2] + 1, slot[2]);
+    }
+
+    /**
+     * 把日志同步到磁盘，检查点和窃取区间时调用，保证掉电后日志的写入顺序
+     */
+    synchronized void force() throws IOException {
+        mFileChannel.force(false);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mFileChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 下载完成，删除日志
+     */
+    synchronized void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (mFile.exists()) {
+            mFile.delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mFileChannel.close();
+        mRandomAccessFile.close();
+    }
+}
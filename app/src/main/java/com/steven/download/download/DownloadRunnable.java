@@ -2,25 +2,59 @@ package com.steven.download.download;
 
 
 import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.BandwidthLimiter;
+import com.steven.download.transfer.BufferPool;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 
 import okhttp3.Response;
+import okio.BufferedSource;
 
 /**
  * 下载线程
  */
 class DownloadRunnable implements Runnable {
+    /**
+     * 写入多少数据后做一次检查点：同步磁盘并记录断点
+     */
+    private static final long CHECKPOINT_LENGTH = 4 * 1024 * 1024;
+    /**
+     * 检查点的最长间隔，慢速下载时进程被杀也只会丢失几秒的进度
+     */
+    private static final long CHECKPOINT_INTERVAL = 1000;
+    /**
+     * 等待重试时检查是否暂停的间隔
+     */
+    private static final long RETRY_CHECK_INTERVAL = 100;
+    /**
+     * 记录镜像速度的间隔
+     */
+    private static final long MIRROR_REPORT_INTERVAL = 500;
+    /**
+     * 数据在buffer中等待写入的最长时间，慢速连接上读满一个buffer可能需要很久，超过后先写入已经读到的部分并更新进度
+     */
+    static final long FLUSH_INTERVAL = 200;
+    /**
+     * 继续下载
+     */
+    static final int STEP_CONTINUE = 0;
+    /**
+     * 当前区间下载完成
+     */
+    static final int STEP_RANGE_FINISHED = 1;
+    /**
+     * 已暂停或者已回收，线程结束
+     */
+    static final int STEP_STOPPED = 2;
 
     /**
      * 线程的状态
      */
-    private int mStatus = DownloadTask.DownloadStatus.STATUS_DOWNLOADING;
+    private volatile int mStatus = DownloadTask.DownloadStatus.STATUS_DOWNLOADING;
     /**
      * 文件下载的url
      */
@@ -33,12 +67,68 @@ class DownloadRunnable implements Runnable {
      * 文件存储路径
      */
     private String folder;
+    /**
+     * 保存的文件
+     */
+    private File mFile;
+    /**
+     * 所属的下载任务，当前区间下载完成后从任务中窃取新的区间
+     */
+    private DownloadTask mTask;
+    /**
+     * 所有下载线程共用的文件
+     */
+    private DownloadFile mDownloadFile;
+    /**
+     * 当前线程写入文件使用的Writer
+     */
+    private DownloadFile.Writer mWriter;
+    /**
+     * 断点日志
+     */
+    private DownloadJournal mJournal;
+    /**
+     * 任务的带宽份额
+     */
+    private BandwidthLimiter.Share mBandwidthShare;
+    /**
+     * 当前区间在断点日志中的槽位，-1 表示没有区间
+     */
+    private int mSlot;
+    /**
+     * 上次同步磁盘后写入的长度
+     */
+    private long mUnforcedLength;
+    /**
+     * 上次检查点的时间
+     */
+    private long mLastCheckpointTime;
+    /**
+     * 是否请求回收当前线程
+     */
+    private volatile boolean isRetireRequested;
+    /**
+     * 当前区间连续失败的次数，读到数据后清零
+     */
+    private int mFailureCount;
+    /**
+     * 当前请求使用的镜像地址
+     */
+    private String mMirror;
+    /**
+     * 上次记录速度后从当前镜像下载的长度
+     */
+    private long mMirrorLength;
+    /**
+     * 上次记录镜像速度的时间
+     */
+    private long mMirrorReportTime;
     /**
      * 每个线程下载开始的位置
      */
     private long start;
     /**
-     * 每个线程下载结束的位置
+     * 每个线程下载结束的位置，可能被窃取区间的线程缩短
      */
     private long end;
     /**
@@ -46,101 +136,549 @@ class DownloadRunnable implements Runnable {
      */
     private long mCurrentLength;
     /**
-     * 下载回调
+     * 已经打开的从start开始的响应，第一次下载区间时直接读取
      */
-    private DownloadCallback downloadCallback;
+    private Response mInitialResponse;
     /**
-     * 断点存储文件,文件名称为 .name.apk.1 信息格式为 start + "-" + end
+     * 下载回调
      */
-    private File breakPointFile;
+    private DownloadCallback downloadCallback;
 
-    DownloadRunnable(String folder, String name, String url, long currentLength, int threadId, long start, long end, DownloadCallback downloadCallback) {
+    DownloadRunnable(DownloadTask task, String folder, String name, String url, long currentLength, long start, long end, int slot, Response initialResponse, DownloadCallback downloadCallback) {
+        this.mTask = task;
+        this.mDownloadFile = task.getDownloadFile();
+        this.mWriter = mDownloadFile.newWriter();
+        this.mJournal = mDownloadFile.getJournal();
+        this.mBandwidthShare = task.getBandwidthShare();
         this.folder = folder;
         this.name = name;
         this.url = url;
+        this.mFile = new File(folder, name);
         this.mCurrentLength = currentLength;
         this.start = start;
         this.end = end;
+        this.mSlot = slot;
+        this.mInitialResponse = initialResponse;
         this.downloadCallback = downloadCallback;
-        this.breakPointFile = new File(folder, "." + name + "." + threadId);
     }
 
     @Override
     public void run() {
-        mStatus = DownloadTask.DownloadStatus.STATUS_DOWNLOADING;
-        InputStream inputStream = null;
-        RandomAccessFile randomAccessFile = null;
+        beginRun();
         try {
-            Response response = OkHttpManager.getInstance().syncResponse(url, start, end);
-            inputStream = response.body().byteStream();
-            //保存文件的路径
-            File file = new File(folder, name);
-            randomAccessFile = new RandomAccessFile(file, "rwd");
-            //seek从哪里开始
-            randomAccessFile.seek(start);
-            int length;
-            byte[] bytes = new byte[10 * 1024];
-            boolean isSuccess = true;
-            while ((length = inputStream.read(bytes)) != -1) {
-                if (mStatus == DownloadTask.DownloadStatus.STATUS_STOP) {
-                    isSuccess = false;
-                    downloadCallback.onPause(file);
-                    break;
+            //新增加的线程一开始没有区间，直接去窃取
+            boolean hasRange = getRemainingLength() > 0 || nextRange();
+            while (hasRange) {
+                try {
+                    if (!downloadRange()) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    //单个连接出错时从失败的位置重试，不影响其它线程
+                    long delay = retryDelay(e);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                    if (!awaitRetry(delay)) {
+                        return;
+                    }
+                    continue;
                 }
-                //写入
-                randomAccessFile.write(bytes, 0, length);
-                //保存下进度，做断点
-                start += length;
-                //实时去更新下进度条，将每次写入的length传出去
-                downloadCallback.onProgress(length, mCurrentLength);
-            }
-            if (isSuccess) {
-                deleteBreakPointFile();
-                downloadCallback.onSuccess(file);
+                //当前区间下载完成，从其它线程剩余最多的区间中窃取后半段继续下载
+                hasRange = nextRange();
             }
         } catch (IOException e) {
-            downloadCallback.onFailure(e);
+            fail(e);
         } finally {
-            //保存到文件记录断点
-            recordProgress(start, end);
-            close(inputStream);
-            close(randomAccessFile);
+            finish();
         }
     }
 
     /**
-     * 停止下载
+     * 下载当前区间 start-end
+     *
+     * @return false 表示下载被暂停或者线程被回收
+     * @throws IOException io异常
      */
-    public void stop() {
-        mStatus = DownloadTask.DownloadStatus.STATUS_STOP;
+    private boolean downloadRange() throws IOException {
+        long[] range = beginRange();
+        BufferedSource source = null;
+        //从共用的池中借出buffer，区间结束后归还
+        ByteBuffer buffer = BufferPool.getInstance().acquire();
+        try {
+            Response response = mInitialResponse;
+            mInitialResponse = null;
+            if (response == null) {
+                //按镜像的速度选择地址；续传时带上If-Range，远程文件改变时服务器返回200和整个新文件
+                String mirror = selectMirror();
+                response = OkHttpManager.getInstance().syncResponse(mirror, range[0], range[1], mJournal.getValidator());
+                try {
+                    checkResponse(range[0], response.code(), response.header("Content-Range"),
+                            response.body().contentLength(), response.header("ETag"), response.header("Last-Modified"));
+                } catch (IOException e) {
+                    close(response);
+                    throw e;
+                }
+            } else {
+                //探测请求的响应来自主地址
+                beginMirror(url);
+            }
+            source = response.body().source();
+            boolean isExhausted = false;
+            while (!isExhausted) {
+                //从okio的缓冲直接读到DirectByteBuffer，读满一个buffer再写入，减少写文件的次数；
+                //每次读取后检查暂停和回收，读得慢时不等buffer读满
+                long fillTime = System.currentTimeMillis();
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) == -1) {
+                        isExhausted = true;
+                        break;
+                    }
+                    if (!isRunning() || System.currentTimeMillis() - fillTime >= FLUSH_INTERVAL) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (checkState() == STEP_STOPPED) {
+                    return false;
+                }
+                //全局限速，令牌不足时阻塞
+                mBandwidthShare.acquire(buffer.remaining());
+                int step = writeRange(buffer);
+                buffer.clear();
+                if (step == STEP_RANGE_FINISHED) {
+                    return true;
+                }
+            }
+            if (getRemainingLength() > 0) {
+                throw new IOException("unexpected end of stream, range " + range[0] + "-" + range[1]);
+            }
+            return true;
+        } finally {
+            close(source);
+            BufferPool.getInstance().release(buffer);
+            reportMirror();
+        }
+    }
+
+    /**
+     * 为下一个请求选择镜像
+     *
+     * @return 镜像地址
+     */
+    String selectMirror() {
+        String mirror = mTask.getMirrors().select();
+        beginMirror(mirror);
+        return mirror;
+    }
+
+    private void beginMirror(String mirror) {
+        mMirror = mirror;
+        mMirrorLength = 0;
+        mMirrorReportTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 记录当前镜像的速度
+     */
+    private void reportMirror() {
+        long now = System.currentTimeMillis();
+        if (mMirror != null && mMirrorLength > 0) {
+            mTask.getMirrors().onTransferred(mMirror, mMirrorLength, now - mMirrorReportTime);
+        }
+        mMirrorLength = 0;
+        mMirrorReportTime = now;
+    }
+
+    /**
+     * 检查区间请求的响应，每个区间都要检查，不能把其它位置的数据写到当前区间：
+     * 206 的Content-Range要从区间开始位置返回；200 表示服务器返回了整个文件，只有从0开始的区间可以使用。
+     * 对If-Range返回200且校验值不同、文件大小或者ETag不一致说明不是同一个文件，主地址重新开始下载，其它镜像停用
+     *
+     * @param rangeStart   请求的区间开始位置
+     * @param code         响应码
+     * @param contentRange 响应中的Content-Range，可能为null
+     * @param bodyLength   响应体的长度，-1 表示未知
+     * @param eTag         响应中的ETag，可能为null
+     * @param lastModified 响应中的Last-Modified，可能为null
+     * @throws RangeNotSupportedException 服务器忽略了Range，需要改为一个连接从头下载
+     */
+    void checkResponse(long rangeStart, int code, String contentRange, long bodyLength, String eTag, String lastModified) throws IOException {
+        String validator = mJournal.getValidator();
+        if (code == 206) {
+            checkSameFile(false, RemoteFile.parseTotalLength(contentRange), eTag);
+            if (RemoteFile.parseRangeStart(contentRange) != rangeStart) {
+                throw new IOException("unexpected Content-Range " + contentRange + ", range start " + rangeStart + ", url " + mMirror);
+            }
+            return;
+        }
+        if (code != 200) {
+            throw new IOException("unexpected response " + code + ", range start " + rangeStart + ", url " + mMirror);
+        }
+        //返回的校验值和If-Range相同说明文件没有改变，只是服务器忽略了Range
+        checkSameFile(validator != null && !validator.equals(eTag) && !validator.equals(lastModified), bodyLength, eTag);
+        if (rangeStart > 0) {
+            throw new RangeNotSupportedException("range not supported, range start " + rangeStart + ", url " + mMirror);
+        }
     }
 
     /**
-     * 记录当前下载的断点
+     * @param isIfRangeFailed 服务器对If-Range返回了整个文件
      */
-    private void recordProgress(long start, long end) {
-        if (start < end) {
-            FileOutputStream fileOutputStream = null;
+    private void checkSameFile(boolean isIfRangeFailed, long totalLength, String eTag) throws IOException {
+        if (!isIfRangeFailed && mTask.getRemoteFile().isSameFile(totalLength, eTag)) {
+            return;
+        }
+        if (url.equals(mMirror)) {
+            throw new RemoteFileChangedException("remote file changed, length " + totalLength + ", ETag " + eTag + ", url " + url);
+        }
+        mTask.getMirrors().disable(mMirror);
+        throw new IOException("mirror mismatch, length " + totalLength + ", ETag " + eTag + ", url " + mMirror);
+    }
+
+    /**
+     * 等待重试，期间暂停时回调onPause
+     *
+     * @return false 等待期间任务被暂停或者线程被回收
+     */
+    private boolean awaitRetry(long delay) throws IOException {
+        long deadline = System.currentTimeMillis() + delay;
+        long now;
+        while ((now = System.currentTimeMillis()) < deadline && !isStopped() && !isRetireRequested) {
             try {
-                fileOutputStream = new FileOutputStream(breakPointFile);
-                String breakPointContent = start + "-" + end;
-                fileOutputStream.write(breakPointContent.getBytes("UTF-8"));
-                fileOutputStream.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                close(fileOutputStream);
+                Thread.sleep(Math.min(RETRY_CHECK_INTERVAL, deadline - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for retry");
             }
         }
+        return checkState() == STEP_CONTINUE;
     }
 
     /**
-     * 删除断点记录文件
+     * 当前区间下载失败，判断能否重试，可以重试时先记录断点，下次从失败的位置继续
+     *
+     * @return 重试前等待的毫秒数，-1 表示不能重试，需要让整个任务失败
      */
-    private void deleteBreakPointFile() {
-        if (breakPointFile != null && breakPointFile.exists()) {
-            breakPointFile.delete();
+    long retryDelay(IOException e) {
+        //远程文件已经改变、服务器不支持Range或者任务已经暂停，重试没有意义
+        if (e instanceof RemoteFileChangedException || e instanceof RangeNotSupportedException || isStopped()) {
+            return -1;
+        }
+        synchronized (this) {
+            //服务器不支持Range时无法从中间继续
+            if (!mTask.isRangeSupported() && start > 0) {
+                return -1;
+            }
+        }
+        if (mMirror != null) {
+            //镜像连续失败后不再使用，重试时换其它镜像
+            mTask.getMirrors().onFailure(mMirror);
         }
+        long delay = mTask.getRetryDelay(++mFailureCount);
+        if (delay < 0) {
+            return -1;
+        }
+        try {
+            checkpoint();
+        } catch (IOException checkpointException) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * 开始执行，线程池和NIO引擎共用。开始前已经暂停的线程不再恢复，下载时回调onPause
+     */
+    void beginRun() {
+        if (mStatus != DownloadTask.DownloadStatus.STATUS_STOP) {
+            mStatus = DownloadTask.DownloadStatus.STATUS_DOWNLOADING;
+        }
+    }
+
+    /**
+     * 非阻塞引擎不能处理的响应，交给线程池从当前位置继续下载，线程池拒绝时失败
+     */
+    void handOverToThread() {
+        if (!mTask.handOverToThread(this)) {
+            fail(new IOException("transfer executor rejected, url " + url));
+            finish();
+        }
+    }
+
+    /**
+     * 开始下载当前区间
+     *
+     * @return 当前区间 {start, end}
+     */
+    long[] beginRange() {
+        mLastCheckpointTime = System.currentTimeMillis();
+        synchronized (this) {
+            return new long[]{start, end};
+        }
+    }
+
+    /**
+     * 写入前检查是否被暂停或者被回收
+     *
+     * @return STEP_CONTINUE 继续下载；STEP_STOPPED 已回调暂停或者剩余区间已让给其它线程
+     */
+    int checkState() throws IOException {
+        if (mStatus == DownloadTask.DownloadStatus.STATUS_STOP) {
+            downloadCallback.onPause(mFile);
+            return STEP_STOPPED;
+        }
+        if (isRetireRequested) {
+            isRetireRequested = false;
+            //剩余区间交给任务，由其它线程继续下载
+            forceFile();
+            if (mTask.retire(this)) {
+                return STEP_STOPPED;
+            }
+        }
+        return STEP_CONTINUE;
+    }
+
+    /**
+     * 把buffer写入当前区间，超出区间的部分丢弃
+     *
+     * @return STEP_CONTINUE 区间还没有下载完；STEP_RANGE_FINISHED 区间下载完成
+     */
+    int writeRange(ByteBuffer buffer) throws IOException {
+        int length;
+        long position;
+        boolean isRangeFinished;
+        ByteBuffer data;
+        synchronized (this) {
+            //区间的后半段可能已经被其它线程窃取，只写到当前的end
+            long remaining = end - start + 1;
+            if (buffer.remaining() > remaining) {
+                buffer.limit((int) remaining);
+            }
+            data = buffer.duplicate();
+            position = start;
+            //按位置写入共用的文件
+            length = mWriter.write(buffer, start);
+            //保存下进度，做断点
+            start += length;
+            isRangeFinished = start > end;
+        }
+        FileVerifier verifier = mTask.getVerifier();
+        if (verifier != null) {
+            //边写边校验，不用下载完再读一遍文件
+            data.limit(data.position() + length);
+            verifier.update(data, position, mDownloadFile);
+        }
+        if (length > 0) {
+            mFailureCount = 0;
+            mMirrorLength += length;
+            if (System.currentTimeMillis() - mMirrorReportTime >= MIRROR_REPORT_INTERVAL) {
+                reportMirror();
+            }
+        }
+        mUnforcedLength += length;
+        if (mUnforcedLength >= CHECKPOINT_LENGTH || System.currentTimeMillis() - mLastCheckpointTime >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+        //实时去更新下进度条，将每次写入的length传出去
+        downloadCallback.onProgress(length, mCurrentLength);
+        return isRangeFinished ? STEP_RANGE_FINISHED : STEP_CONTINUE;
+    }
+
+    /**
+     * 当前区间下载完成，领取下一个区间
+     *
+     * @return false 没有可以领取的区间，已经回调下载成功；或者任务已暂停，已经回调暂停
+     */
+    boolean nextRange() throws IOException {
+        finishRange();
+        int result = mTask.stealRange(this);
+        if (result == DownloadTask.STEAL_SUCCESS) {
+            return true;
+        }
+        if (result == DownloadTask.STEAL_STOPPED) {
+            downloadCallback.onPause(mFile);
+        } else {
+            downloadCallback.onSuccess(mFile);
+        }
+        return false;
+    }
+
+    /**
+     * 新增加的线程没能开始执行，和没有领到区间的线程一样结束，最后一个结束的线程完成任务
+     */
+    void cancelStart() {
+        downloadCallback.onSuccess(mFile);
+        finish();
+    }
+
+    /**
+     * 下载失败
+     */
+    void fail(IOException e) {
+        downloadCallback.onFailure(e);
+    }
+
+    /**
+     * 结束执行：记录断点并释放文件
+     */
+    void finish() {
+        //没有用到的响应要关闭，否则连接不会释放
+        if (mInitialResponse != null) {
+            close(mInitialResponse);
+            mInitialResponse = null;
+        }
+        try {
+            //暂停或者失败时记录断点
+            checkpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mTask.releaseFile(mDownloadFile);
+    }
+
+    /**
+     * 任务是否已经暂停
+     */
+    boolean isStopped() {
+        return mStatus == DownloadTask.DownloadStatus.STATUS_STOP;
+    }
+
+    /**
+     * 下载地址
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * 镜像地址
+     */
+    MirrorSelector getMirrors() {
+        return mTask.getMirrors();
+    }
+
+    /**
+     * 远程文件的校验值，作为If-Range发送
+     */
+    String getValidator() {
+        return mJournal.getValidator();
+    }
+
+    /**
+     * 任务的带宽份额
+     */
+    BandwidthLimiter.Share getBandwidthShare() {
+        return mBandwidthShare;
+    }
+
+    /**
+     * 检查点：先把数据同步到磁盘，再记录断点，保证断点之前的数据都已经写入
+     */
+    private void checkpoint() throws IOException {
+        forceFile();
+        synchronized (this) {
+            if (mSlot >= 0) {
+                mJournal.record(mSlot, start, end);
+                mJournal.force();
+            }
+        }
+        mLastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 当前区间下载完成，数据同步到磁盘后释放断点日志的槽位
+     */
+    private void finishRange() throws IOException {
+        forceFile();
+        synchronized (this) {
+            if (mSlot >= 0) {
+                mJournal.free(mSlot);
+                mSlot = -1;
+            }
+        }
+    }
+
+    /**
+     * 把已写入的数据同步到磁盘
+     */
+    private void forceFile() throws IOException {
+        if (mUnforcedLength > 0) {
+            mWriter.force();
+            mUnforcedLength = 0;
+        }
+    }
+
+    /**
+     * 剩余未下载的长度
+     */
+    synchronized long getRemainingLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * 把剩余区间的后半段分出去，当前线程只下载前半段
+     *
+     * @param minLength 剩余区间小于该值时不拆分
+     * @return 被分出去的区间 {start, end, slot}，已经记录在新的槽位中，不能拆分时返回null
+     */
+    synchronized long[] splitTail(long minLength) throws IOException {
+        long remaining = end - start + 1;
+        if (remaining < minLength) {
+            return null;
+        }
+        long newEnd = start + remaining / 2 - 1;
+        //先记录分出去的区间并同步，再缩短当前区间；两次写入之间进程被杀时区间重叠，只是重复下载，不会丢失区间
+        int slot = mJournal.newSlot(newEnd + 1, end);
+        mJournal.force();
+        long[] tail = {newEnd + 1, end, slot};
+        mJournal.recordEnd(mSlot, newEnd);
+        end = newEnd;
+        return tail;
+    }
+
+    /**
+     * 取走剩余的区间，当前线程不再下载
+     *
+     * @return 剩余的区间 {start, end, slot}
+     */
+    synchronized long[] takeRange() {
+        long[] range = {start, end, mSlot};
+        end = start - 1;
+        mSlot = -1;
+        return range;
+    }
+
+    /**
+     * 请求回收当前线程，线程在下一次读取后让出剩余区间
+     */
+    void requestRetire() {
+        isRetireRequested = true;
+    }
+
+    /**
+     * 是否正在下载
+     */
+    boolean isRunning() {
+        return mStatus == DownloadTask.DownloadStatus.STATUS_DOWNLOADING && !isRetireRequested;
+    }
+
+    /**
+     * 重新设置要下载的区间
+     *
+     * @param slot 区间在断点日志中的槽位
+     */
+    synchronized void resetRange(long start, long end, int slot) {
+        this.start = start;
+        this.end = end;
+        this.mSlot = slot;
+    }
+
+    /**
+     * 停止下载
+     */
+    public void stop() {
+        mStatus = DownloadTask.DownloadStatus.STATUS_STOP;
     }
 
     /**
@@ -1,31 +1,66 @@
 package com.steven.download.download;
 
-import android.support.annotation.NonNull;
-import android.text.TextUtils;
+import com.steven.download.transfer.BandwidthLimiter;
+import com.steven.download.transfer.TransferExecutor;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Response;
 
 /**
  * 下载任务
  */
 public class DownloadTask {
+    /**
+     * 剩余区间小于该长度时不再拆分给空闲线程
+     */
+    private static final long MIN_STEAL_LENGTH = 512 * 1024;
+    /**
+     * 任务开始时的连接数
+     */
+    private static final int INITIAL_THREAD_SIZE = 2;
+    /**
+     * 服务器是HTTP/2时任务开始的区间数，新的流不需要握手
+     */
+    private static final int INITIAL_STREAM_SIZE = 4;
+    /**
+     * 检查是否需要调整连接数的间隔
+     */
+    private static final long ADJUST_INTERVAL = 500;
+    /**
+     * 远程文件改变后最多重新开始的次数，避免每次请求ETag都不同的服务器无限重试
+     */
+    private static final int MAX_RESTART_COUNT = 1;
+    /**
+     * 领取到了区间
+     */
+    static final int STEAL_SUCCESS = 0;
+    /**
+     * 没有可以领取的区间，线程结束
+     */
+    static final int STEAL_NONE = 1;
+    /**
+     * 任务已暂停，线程结束，没有下载完的区间留在断点日志中
+     */
+    static final int STEAL_STOPPED = 2;
     /**
      * 下载状态
      */
-    private int mStatus = DownloadStatus.STATUS_DOWNLOADING;
+    private volatile int mStatus = DownloadStatus.STATUS_DOWNLOADING;
     /**
      * 文件下载的url
      */
     private String url;
+    /**
+     * 镜像地址，只有一个地址时就是url
+     */
+    private MirrorSelector mMirrors;
     /**
      * 文件的名称
      */
@@ -39,19 +74,91 @@ public class DownloadTask {
      */
     private long mContentLength;
     /**
-     * 下载文件的线程的个数
+     * 探测请求得到的远程文件信息
+     */
+    private RemoteFile mRemoteFile;
+    /**
+     * 期望的校验值，为null时不校验
      */
-    private int mThreadSize;
+    private DownloadDigest mDigest;
     /**
-     * 线程下载成功的个数,变量加个volatile，多线程保证变量可见性以及原子性
+     * 边下载边计算校验值
      */
-    private AtomicInteger mSuccessNumber;
+    private volatile FileVerifier mVerifier;
     /**
-     * 总进度=每个线程的进度的和
+     * 文件大小超过该值时使用内存映射写入
      */
-    private long mTotalLength;
+    private long mMappedWriteThreshold;
     /**
-     * 下载的线程集合
+     * 文件大小小于该值时一个连接顺序下载，不拆分区间，不写断点日志
+     */
+    private long mSmallFileThreshold;
+    /**
+     * 小文件的下载线程
+     */
+    private volatile SmallFileRunnable mSmallFileRunnable;
+    /**
+     * 区间下载失败后的最大重试次数
+     */
+    private int mRetryCount;
+    /**
+     * 第一次重试前等待的时间
+     */
+    private long mRetryDelay;
+    /**
+     * 重试等待时间的上限
+     */
+    private long mMaxRetryDelay;
+    /**
+     * 单个任务最多同时使用的连接数，HTTP/2时是最多同时下载的区间数
+     */
+    private int mMaxThreadSize;
+    /**
+     * 是否使用非阻塞引擎下载，遇到非阻塞引擎不能处理的响应后改为线程池
+     */
+    private volatile boolean isNioEngine;
+    /**
+     * 正在下载的线程个数，为0时任务下载完成
+     */
+    private int mActiveNumber;
+    /**
+     * 是否已经回调过下载成功
+     */
+    private boolean isSuccessNotified;
+    /**
+     * 被回收的线程让出的区间，等待空闲线程领取 {start, end, slot}
+     */
+    private List<long[]> mPendingRanges;
+    /**
+     * 下载保存的文件，所有下载线程共用
+     */
+    private DownloadFile mDownloadFile;
+    /**
+     * 带宽份额
+     */
+    private volatile BandwidthLimiter.Share mBandwidthShare;
+    /**
+     * 根据实时下载速度增减连接数
+     */
+    private ThroughputController mThroughputController;
+    /**
+     * 进度回调的最小时间间隔
+     */
+    private long mProgressInterval;
+    /**
+     * 进度回调的步长
+     */
+    private float mProgressStep;
+    /**
+     * 总进度=每个线程的进度的和，合并后回调
+     */
+    private ProgressAggregator mProgressAggregator;
+    /**
+     * 上次调整连接数的时间
+     */
+    private volatile long mLastAdjustTime;
+    /**
+     * 下载的线程集合，下载线程窃取区间时会遍历
      */
     private List<DownloadRunnable> mDownloadRunnables;
     /**
@@ -66,59 +173,383 @@ public class DownloadTask {
      * 设置tag，用于取消
      */
     private Object tag;
+    /**
+     * 优先级，数值越大越先下载
+     */
+    private volatile int mPriority = DownloadPriority.PRIORITY_NORMAL;
+    /**
+     * 进入等待队列的顺序
+     */
+    private long mSequence;
+    /**
+     * 是否被高优先级的任务抢占
+     */
+    private volatile boolean isPreempted;
+    /**
+     * 被抢占后等待文件关闭再重新排队
+     */
+    private volatile boolean isRequeuePending;
+    /**
+     * 远程文件改变后重新开始的次数
+     */
+    private int mRestartCount;
+    /**
+     * 远程文件已经改变，等待文件关闭后重新开始
+     */
+    private volatile boolean isRestartPending;
+    /**
+     * 下载过程中发现服务器忽略了Range，之后只用一个连接从头下载
+     */
+    private volatile boolean isRangeDisabled;
+    /**
+     * 等待文件关闭后改为一个连接重新下载
+     */
+    private volatile boolean isFallbackPending;
 
-    DownloadTask(String folder, String name, String url, int threadSize, long contentLength, Object tag, DownloadCallback callBack) {
+    DownloadTask(String folder, String name, List<String> urls, RemoteFile remoteFile, DownloadDigest digest, Object tag, DownloadCallback callBack) {
+        DownloadDispatcher dispatcher = DownloadDispatcher.getInstance();
         this.folder = folder;
         this.name = name;
-        this.url = url;
-        this.mThreadSize = threadSize;
-        this.mContentLength = contentLength;
-        this.mDownloadRunnables = new ArrayList<>();
+        this.url = urls.get(0);
+        this.mMirrors = new MirrorSelector(urls);
+        this.mRemoteFile = remoteFile;
+        this.mDigest = digest;
+        //服务器不支持Range时只能用一个连接从头下载
+        //HTTP/2的区间复用同一个连接，区间数不受连接数限制
+        int maxThreadSize = remoteFile.isMultiplexed ? dispatcher.getMaxStreamSize() : dispatcher.getMaxThreadSize();
+        this.mMaxThreadSize = remoteFile.isRangeSupported ? maxThreadSize : 1;
+        this.mContentLength = remoteFile.contentLength;
+        //非阻塞引擎只实现了http/1.1
+        this.isNioEngine = dispatcher.getEngine() == DownloadDispatcher.DownloadEngine.ENGINE_NIO && !remoteFile.isMultiplexed
+                && NioDownloadEngine.isSupported(urls);
+        this.mMappedWriteThreshold = dispatcher.getMappedWriteThreshold();
+        this.mSmallFileThreshold = dispatcher.getSmallFileThreshold();
+        this.mProgressInterval = dispatcher.getProgressInterval();
+        this.mProgressStep = dispatcher.getProgressStep();
+        this.mRetryCount = dispatcher.getRetryCount();
+        this.mRetryDelay = dispatcher.getRetryDelay();
+        this.mMaxRetryDelay = dispatcher.getMaxRetryDelay();
+        this.mDownloadRunnables = new CopyOnWriteArrayList<>();
+        this.mPendingRanges = new ArrayList<>();
         this.tag = tag;
         this.mCallback = callBack;
-        this.mSuccessNumber = new AtomicInteger(0);
     }
 
     void init() {
+        init(null);
+    }
+
+    /**
+     * 开始下载
+     *
+     * @param probeResponse 探测请求的响应，从0开始，直接作为第一个区间下载；为null时重新请求
+     */
+    void init(Response probeResponse) {
         //任务状态是否停止
         if (mStatus == DownloadStatus.STATUS_STOP) {
+            close(probeResponse);
+            if (isPreempted) {
+                //还没开始就被抢占，重新等待
+                DownloadDispatcher.getInstance().requeueTask(DownloadTask.this);
+                return;
+            }
             mCallback.onPause(new File(folder, name));
             DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
             return;
         }
-        //检查是否有记录的断点信息，如果有则读取断点信息继续下载
-        List<BreakPoint> points = getBreakPoints(folder, name);
-        if (!points.isEmpty()) {
-            mThreadSize = points.size();
+        //被抢占后重新开始时，清除上一次下载的状态，从断点日志继续下载
+        mStatus = DownloadStatus.STATUS_DOWNLOADING;
+        atomicIsStoped.set(false);
+        mDownloadRunnables.clear();
+        synchronized (this) {
+            mPendingRanges.clear();
+            isSuccessNotified = false;
+        }
+        mThroughputController = new ThroughputController(mMaxThreadSize);
+        if (mContentLength < mSmallFileThreshold) {
+            startSmallFile(probeResponse);
+            return;
+        }
+        try {
+            //每次开始都重新计算，断点之前的数据在下载完成时读取
+            mVerifier = mDigest == null ? null : new FileVerifier(mDigest.getAlgorithm());
+            mDownloadFile = new DownloadFile(new File(folder, name), mContentLength, mRemoteFile.getValidator(), mContentLength >= mMappedWriteThreshold);
+        } catch (IOException e) {
+            close(probeResponse);
+            mCallback.onFailure(e);
+            DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+            return;
+        }
+        //按优先级分得带宽，文件关闭时归还
+        mBandwidthShare = BandwidthLimiter.getInstance().register(mPriority + 1);
+        try {
+            startDownloadRunnables(probeResponse);
+        } catch (IOException e) {
+            mCallback.onFailure(e);
+            stopDownload();
+            DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+        } finally {
+            //下载线程各自持有文件的引用，全部结束后关闭文件
+            releaseFile(mDownloadFile);
+        }
+    }
+
+    /**
+     * 释放文件的引用，被抢占或者需要重新开始的任务在所有下载线程结束、文件关闭后才重新排队，避免和下次下载同时写文件
+     */
+    void releaseFile(DownloadFile downloadFile) {
+        if (!downloadFile.release()) {
+            return;
+        }
+        onFileReleased();
+    }
+
+    /**
+     * 小文件下载线程结束
+     */
+    void finishSmallFile() {
+        mSmallFileRunnable = null;
+        onFileReleased();
+    }
+
+    /**
+     * 文件已经关闭，归还带宽，继续等待文件关闭的重新排队或者重新开始
+     */
+    private void onFileReleased() {
+        mBandwidthShare.release();
+        if (takeRequeuePending()) {
+            DownloadDispatcher.getInstance().requeueTask(DownloadTask.this);
+        }
+        if (takeFallbackPending()) {
+            DownloadDispatcher.getInstance().requeueTask(DownloadTask.this);
+        }
+        if (takeRestartPending()) {
+            DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+            DownloadDispatcher.getInstance().probe(folder, name, mMirrors.getUrls(), tag, mPriority, mDigest, mCallback, mRestartCount + 1);
+        }
+    }
+
+    /**
+     * 区间第failureCount次失败后重试前等待的时间：指数增长，再随机取一半到全部，避免多个连接同时重试
+     *
+     * @param failureCount 连续失败的次数，从1开始
+     * @return 等待的毫秒数，-1 表示重试次数已经用完
+     */
+    long getRetryDelay(int failureCount) {
+        if (failureCount > mRetryCount) {
+            return -1;
+        }
+        long delay = Math.min(mMaxRetryDelay, mRetryDelay << Math.min(failureCount - 1, 20));
+        return delay / 2 + (long) (Math.random() * (delay / 2 + 1));
+    }
+
+    /**
+     * 任务的带宽份额，所有下载线程共用
+     */
+    BandwidthLimiter.Share getBandwidthShare() {
+        return mBandwidthShare;
+    }
+
+    /**
+     * 根据断点日志或者文件大小创建下载线程
+     *
+     * @param probeResponse 探测请求的响应，可能为null
+     */
+    private void startDownloadRunnables(Response probeResponse) throws IOException {
+        DownloadJournal journal = mDownloadFile.getJournal();
+        if (!isRangeSupported()) {
+            //不支持Range时断点无法继续，从头下载
+            journal.reset(mContentLength);
+        }
+        //检查断点日志中是否有未下载完的区间，如果有则继续下载
+        List<long[]> ranges = journal.getRanges();
+        if (!journal.isNew()) {
             long leaveLength = 0;
-            for (int i = 0; i < mThreadSize; i++) {
-                BreakPoint point = points.get(i);
-                leaveLength += (point.end - point.start);
-                mTotalLength = mContentLength - leaveLength;
-                initDownloadRunnable(point.threadId, point.start, point.end);
+            for (long[] range : ranges) {
+                leaveLength += (range[1] - range[0] + 1);
+            }
+            mProgressAggregator = new ProgressAggregator(mContentLength - leaveLength, mContentLength, mProgressInterval, mProgressStep, mCallback);
+            //超过最大连接数的区间等待空闲线程领取
+            int threadSize = Math.max(1, Math.min(ranges.size(), mMaxThreadSize));
+            synchronized (this) {
+                mActiveNumber = threadSize;
+                mPendingRanges.addAll(ranges.subList(Math.min(threadSize, ranges.size()), ranges.size()));
+            }
+            //断点一般不从0开始，探测请求的响应用不上
+            close(probeResponse);
+            for (int i = 0; i < threadSize; i++) {
+                //日志中已经没有未下载的区间时，线程直接结束并回调下载成功
+                long[] range = i < ranges.size() ? ranges.get(i) : new long[]{0, -1, -1};
+                initDownloadRunnable(range[0], range[1], (int) range[2], null);
             }
             return;
         }
-        for (int i = 0; i < mThreadSize; i++) {
-            //初始化的时候，需要读取数据库
-            //每个线程的下载的大小threadSize
-            long threadSize = mContentLength / mThreadSize;
+        mProgressAggregator = new ProgressAggregator(0, mContentLength, mProgressInterval, mProgressStep, mCallback);
+        //先用少量连接下载，之后由ThroughputController根据速度增加连接，新的连接通过窃取区间得到要下载的部分；
+        //有多个镜像时每个镜像至少能分到一个连接；HTTP/2新的流不需要握手，开始时就用更多的区间
+        int initialSize = Math.max(mRemoteFile.isMultiplexed ? INITIAL_STREAM_SIZE : INITIAL_THREAD_SIZE, mMirrors.getUrls().size());
+        int threadSize = (int) Math.max(1, Math.min(Math.min(initialSize, mMaxThreadSize), mContentLength / MIN_STEAL_LENGTH));
+        synchronized (this) {
+            mActiveNumber = threadSize;
+        }
+        //每个线程的下载的大小
+        long rangeSize = mContentLength / threadSize;
+        for (int i = 0; i < threadSize; i++) {
             //开始下载的位置
-            long start = i * threadSize;
+            long start = i * rangeSize;
             //结束下载的位置
-            long end = start + threadSize - 1;
-            if (i == mThreadSize - 1) {
+            long end = start + rangeSize - 1;
+            if (i == threadSize - 1) {
                 end = mContentLength - 1;
             }
-            initDownloadRunnable(i, start, end);
+            //第一个区间直接读探测请求的响应，少一次请求
+            initDownloadRunnable(start, end, journal.newSlot(start, end), i == 0 ? probeResponse : null);
         }
     }
 
     /**
-     * 初始化下载线程
+     * 小文件直接用一个连接从头顺序下载，探测请求的响应就是整个文件，一次往返完成
+     *
+     * @param probeResponse 探测请求的响应，可能为null
      */
-    private void initDownloadRunnable(int theadId, long start, long end) {
-        DownloadRunnable downloadRunnable = new DownloadRunnable(folder, name, url, mContentLength, theadId, start, end, new DownloadCallback() {
+    private void startSmallFile(Response probeResponse) {
+        //上次按区间下载留下的断点日志已经没有用了
+        new File(folder, "." + name + ".journal").delete();
+        try {
+            mVerifier = mDigest == null ? null : new FileVerifier(mDigest.getAlgorithm());
+        } catch (IOException e) {
+            close(probeResponse);
+            mCallback.onFailure(e);
+            DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+            return;
+        }
+        mProgressAggregator = new ProgressAggregator(0, mContentLength, mProgressInterval, mProgressStep, mCallback);
+        mBandwidthShare = BandwidthLimiter.getInstance().register(mPriority + 1);
+        DownloadCallback downloadCallback = new DownloadCallback() {
+            @Override
+            public void onStart(String fileName, int status) {
+
+            }
+
+            @Override
+            public void onProgress(long currentLength, long totalLength) {
+                mProgressAggregator.add(currentLength);
+            }
+
+            @Override
+            public void onSuccess(File file) {
+                mProgressAggregator.finish();
+                try {
+                    verify();
+                } catch (IOException e) {
+                    file.delete();
+                    mCallback.onFailure(e);
+                    DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+                    return;
+                }
+                mCallback.onSuccess(file);
+                DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (!atomicIsStoped.get()) {
+                    atomicIsStoped.set(true);
+                    if (e instanceof RemoteFileChangedException && restart()) {
+                        return;
+                    }
+                    mCallback.onFailure(e);
+                    mStatus = DownloadStatus.STATUS_STOP;
+                    DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+                }
+            }
+
+            @Override
+            public void onPause(File file) {
+                if (!atomicIsStoped.get()) {
+                    atomicIsStoped.set(true);
+                    mProgressAggregator.finish();
+                    if (markRequeuePending()) {
+                        //被高优先级的任务抢占，线程结束后重新排队
+                        mCallback.onStart(name, DownloadStatus.STATUS_WAITING);
+                        return;
+                    }
+                    mCallback.onPause(file);
+                    DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+                }
+            }
+        };
+        SmallFileRunnable runnable = new SmallFileRunnable(DownloadTask.this, new File(folder, name), url, mContentLength, probeResponse, downloadCallback);
+        mSmallFileRunnable = runnable;
+        try {
+            TransferExecutor.getInstance().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            close(probeResponse);
+            downloadCallback.onFailure(new IOException("transfer executor rejected", e));
+            finishSmallFile();
+        }
+    }
+
+    /**
+     * 初始化下载线程，线程池拒绝时任务失败
+     *
+     * @param slot     区间在断点日志中的槽位，-1 表示没有区间
+     * @param response 已经打开的从start开始的响应，为null时由线程自己请求
+     */
+    private void initDownloadRunnable(long start, long end, int slot, Response response) {
+        DownloadRunnable downloadRunnable = newDownloadRunnable(start, end, slot, response);
+        //探测请求的响应已经由OkHttp打开，这个线程仍然在线程池中读取
+        if (isNioEngine && response == null) {
+            NioDownloadEngine.getInstance().execute(downloadRunnable);
+            return;
+        }
+        try {
+            //通过共用的线程池去执行
+            TransferExecutor.getInstance().execute(downloadRunnable);
+        } catch (RejectedExecutionException e) {
+            //等待队列已满，任务失败，已经记录的断点下次继续
+            mDownloadRunnables.remove(downloadRunnable);
+            if (response != null) {
+                response.close();
+            }
+            downloadRunnable.fail(new IOException("transfer executor rejected", e));
+            releaseFile(mDownloadFile);
+        }
+    }
+
+    /**
+     * 根据下载速度增加的线程，在锁外执行。新线程还没有区间，开始执行后才窃取；
+     * 线程池拒绝时只是不增加连接，撤销计数后和没有领到区间的线程一样结束，不影响任务
+     */
+    private void addDownloadRunnable() {
+        DownloadRunnable downloadRunnable = newDownloadRunnable(0, -1, -1, null);
+        boolean isAdded = true;
+        if (isNioEngine) {
+            NioDownloadEngine.getInstance().execute(downloadRunnable);
+        } else {
+            try {
+                TransferExecutor.getInstance().execute(downloadRunnable);
+            } catch (RejectedExecutionException e) {
+                isAdded = false;
+            }
+        }
+        synchronized (this) {
+            mThroughputController.onAdded(isAdded);
+            if (!isAdded) {
+                mDownloadRunnables.remove(downloadRunnable);
+                mActiveNumber--;
+            }
+        }
+        if (!isAdded) {
+            downloadRunnable.cancelStart();
+        }
+    }
+
+    /**
+     * 创建下载线程，加入集合后才开始执行，保证开始执行后能被其它线程窃取区间
+     */
+    private DownloadRunnable newDownloadRunnable(long start, long end, int slot, Response response) {
+        DownloadCallback downloadCallback = new DownloadCallback() {
 
             @Override
             public void onStart(String fileName, int status) {
@@ -130,6 +561,12 @@ public class DownloadTask {
                 //有一个线程发生异常，下载失败，需要把其它线程停止掉
                 if (!atomicIsStoped.get()) {
                     atomicIsStoped.set(true);
+                    if (e instanceof RemoteFileChangedException && restart()) {
+                        return;
+                    }
+                    if (e instanceof RangeNotSupportedException && fallbackToSingleStream()) {
+                        return;
+                    }
                     mCallback.onFailure(e);
                     stopDownload();
                     //下载失败回收任务，继续下载后面等待的任务
@@ -139,20 +576,51 @@ public class DownloadTask {
 
             @Override
             public void onSuccess(File file) {
-                mSuccessNumber.addAndGet(1);
-                if (mSuccessNumber.intValue() == mThreadSize) {
-                    mCallback.onSuccess(file);
-                    //下载成功回收任务，继续下载后面等待的任务
+                boolean isCompleted;
+                synchronized (DownloadTask.this) {
+                    //还有线程在下载，或者已经回调过成功
+                    if (mActiveNumber > 0 || isSuccessNotified) {
+                        return;
+                    }
+                    //任务已暂停或者还有没人领取的区间，文件没有下载完，保留断点日志
+                    isCompleted = mStatus != DownloadStatus.STATUS_STOP && mPendingRanges.isEmpty();
+                    isSuccessNotified = isCompleted;
+                }
+                if (!isCompleted) {
+                    onPause(file);
+                    return;
+                }
+                //下载完成，删除断点日志
+                mDownloadFile.getJournal().delete();
+                mProgressAggregator.finish();
+                try {
+                    verify();
+                } catch (IOException e) {
+                    //文件已损坏，删除后下次重新下载
+                    file.delete();
+                    mCallback.onFailure(e);
                     DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+                    return;
                 }
+                mCallback.onSuccess(file);
+                //下载成功回收任务，继续下载后面等待的任务
+                DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
             }
 
             @Override
             public void onProgress(long currentLength, long totalLength) {
-                //叠加下progress，实时去更新进度条
-                //这里需要synchronized下
-                synchronized (DownloadTask.this) {
-                    mCallback.onProgress(mTotalLength += currentLength, totalLength);
+                //叠加下progress，由ProgressAggregator合并后回调
+                mProgressAggregator.add(currentLength);
+                long now = System.currentTimeMillis();
+                if (now - mLastAdjustTime >= ADJUST_INTERVAL) {
+                    mLastAdjustTime = now;
+                    boolean isAdding;
+                    synchronized (DownloadTask.this) {
+                        isAdding = adjustThreadSize();
+                    }
+                    if (isAdding) {
+                        addDownloadRunnable();
+                    }
                 }
             }
 
@@ -160,94 +628,372 @@ public class DownloadTask {
             public void onPause(File file) {
                 if (!atomicIsStoped.get()) {
                     atomicIsStoped.set(true);
+                    mProgressAggregator.finish();
+                    if (markRequeuePending()) {
+                        //被高优先级的任务抢占，文件关闭后重新排队
+                        mCallback.onStart(name, DownloadStatus.STATUS_WAITING);
+                        return;
+                    }
                     mCallback.onPause(file);
                     //暂停任务回收任务
                     DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
                 }
             }
-        });
-        //通过线程池去执行
-        DownloadDispatcher.getInstance().executorService().execute(downloadRunnable);
+        };
+        DownloadRunnable downloadRunnable = new DownloadRunnable(DownloadTask.this, folder, name, url, mContentLength, start, end, slot, response, downloadCallback);
+        //先加入集合，保证线程开始执行后能被其它线程窃取区间
         mDownloadRunnables.add(downloadRunnable);
+        mDownloadFile.retain();
+        return downloadRunnable;
     }
 
     /**
-     * 获取断点记录
+     * 空闲线程领取区间，优先领取被回收线程让出的区间，否则从剩余最多的线程中窃取后半段，避免整个任务等待最慢的那个连接
+     *
+     * @param thief 当前区间已下载完成的线程
+     * @return STEAL_SUCCESS 领取成功，thief的区间已被重新设置；STEAL_NONE 没有可以领取的区间；STEAL_STOPPED 任务已暂停
      */
-    private List<BreakPoint> getBreakPoints(String folder, final String fileName) {
-        List<BreakPoint> points = new ArrayList<>();
-        File[] files = new File(folder).listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.startsWith("." + fileName + ".");
+    synchronized int stealRange(DownloadRunnable thief) throws IOException {
+        if (mStatus == DownloadStatus.STATUS_STOP) {
+            //等待领取的区间和其它线程剩余的区间都还没下载，不能当作下载完成
+            mActiveNumber--;
+            return STEAL_STOPPED;
+        }
+        if (!mPendingRanges.isEmpty()) {
+            long[] range = mPendingRanges.remove(mPendingRanges.size() - 1);
+            thief.resetRange(range[0], range[1], (int) range[2]);
+            return STEAL_SUCCESS;
+        }
+        DownloadRunnable victim = null;
+        long maxRemaining = 0;
+        for (DownloadRunnable runnable : mDownloadRunnables) {
+            if (runnable == thief) {
+                continue;
             }
-        });
-        for (File file : files) {
-            String content = getFileContent(file);
-            String name = file.getName();
-            String threadId = name.substring(name.lastIndexOf(".") + 1);
-            if (!TextUtils.isEmpty(content)) {
-                String[] arrays = content.split("-");
-                if (arrays.length == 2) {
-                    points.add(new BreakPoint(Long.parseLong(arrays[0]), Long.parseLong(arrays[1]), Integer.parseInt(threadId)));
-                }
+            long remaining = runnable.getRemainingLength();
+            if (remaining > maxRemaining) {
+                maxRemaining = remaining;
+                victim = runnable;
             }
         }
-        Collections.sort(points, new Comparator<BreakPoint>() {
-            @Override
-            public int compare(BreakPoint o1, BreakPoint o2) {
-                return o1.start.compareTo(o2.start);
-            }
-        });
-        return points;
+        long[] tail = victim == null ? null : victim.splitTail(MIN_STEAL_LENGTH);
+        if (tail == null) {
+            mActiveNumber--;
+            return STEAL_NONE;
+        }
+        thief.resetRange(tail[0], tail[1], (int) tail[2]);
+        return STEAL_SUCCESS;
     }
 
-    private static class BreakPoint {
-        Long start;
-        Long end;
-        int threadId;
-
-        BreakPoint(long start, long end, int threadId) {
-            this.start = start;
-            this.end = end;
-            this.threadId = threadId;
+    /**
+     * 回收下载线程，把线程剩余的区间让给其它线程，区间仍然记录在原来的槽位
+     *
+     * @param runnable 要回收的线程，已经把写入的数据同步到磁盘
+     * @return false 只剩这一个线程在下载，不能回收
+     */
+    synchronized boolean retire(DownloadRunnable runnable) throws IOException {
+        if (mActiveNumber <= 1 || mStatus == DownloadStatus.STATUS_STOP) {
+            return false;
         }
+        long[] range = runnable.takeRange();
+        if (range[0] <= range[1]) {
+            mDownloadFile.getJournal().record((int) range[2], range[0], range[1]);
+            mPendingRanges.add(range);
+        } else if (range[2] >= 0) {
+            mDownloadFile.getJournal().free((int) range[2]);
+        }
+        mActiveNumber--;
+        return true;
     }
 
     /**
-     * 读取断点内容
+     * 非阻塞引擎遇到重定向或者分块传输的响应，把线程交给线程池，由OkHttp跟随重定向和解码后从当前位置继续下载。
+     * 之后新增的线程也直接使用线程池
+     *
+     * @param runnable 还没有读取响应体的线程
+     * @return false 线程池拒绝
      */
-    private String getFileContent(@NonNull File file) {
-        FileInputStream fileInputStream = null;
+    boolean handOverToThread(DownloadRunnable runnable) {
+        isNioEngine = false;
         try {
-            fileInputStream = new FileInputStream(file);
-            byte[] bytes = new byte[fileInputStream.available()];
-            int length = fileInputStream.read(bytes);
-            if (length > 0) {
-                return new String(bytes);
-            }
-        } catch (IOException e) {
+            TransferExecutor.getInstance().execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (fileInputStream != null) {
-                    fileInputStream.close();
+            return false;
+        }
+    }
+
+    /**
+     * 根据下载速度增加或者回收连接，调用时已持有DownloadTask的锁
+     *
+     * @return true 需要增加一个线程，已经计入mActiveNumber，由调用方在锁外开始执行
+     */
+    private boolean adjustThreadSize() {
+        if (mStatus == DownloadStatus.STATUS_STOP) {
+            return false;
+        }
+        int action = mThroughputController.sample(mProgressAggregator.getCurrentLength(), mActiveNumber);
+        //线程池已经没有空闲线程时不再增加连接，新的连接只会排队；非阻塞引擎的连接不占用线程
+        if (action == ThroughputController.ACTION_ADD) {
+            if (hasStealableRange() && (isNioEngine || !TransferExecutor.getInstance().isBusy())) {
+                //新线程没有区间，开始执行后会从其它线程窃取
+                mActiveNumber++;
+                return true;
+            }
+            mThroughputController.onAdded(false);
+        } else if (action == ThroughputController.ACTION_RETIRE) {
+            //回收剩余区间最少的线程，让出的区间由其它线程领取
+            DownloadRunnable candidate = null;
+            long minRemaining = Long.MAX_VALUE;
+            for (DownloadRunnable runnable : mDownloadRunnables) {
+                long remaining = runnable.getRemainingLength();
+                if (runnable.isRunning() && remaining > 0 && remaining < minRemaining) {
+                    minRemaining = remaining;
+                    candidate = runnable;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            if (candidate != null) {
+                candidate.requestRetire();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否有足够长的区间可以拆分给新的线程
+     */
+    private boolean hasStealableRange() {
+        if (!mPendingRanges.isEmpty()) {
+            return true;
+        }
+        for (DownloadRunnable runnable : mDownloadRunnables) {
+            if (runnable.getRemainingLength() >= MIN_STEAL_LENGTH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 校验下载的文件
+     *
+     * @throws IOException 校验值不一致或者读取失败
+     */
+    private void verify() throws IOException {
+        if (mVerifier == null) {
+            return;
+        }
+        String actual = mVerifier.finish(mDownloadFile, mContentLength);
+        if (!mDigest.matches(actual)) {
+            throw new IOException(mDigest.getAlgorithm() + " mismatch, expected " + mDigest.getExpected() + ", actual " + actual + ", url " + url);
+        }
+    }
+
+    /**
+     * 边下载边计算校验值，不校验时为null
+     */
+    FileVerifier getVerifier() {
+        return mVerifier;
+    }
+
+    /**
+     * 所有下载线程共用的文件
+     */
+    DownloadFile getDownloadFile() {
+        return mDownloadFile;
+    }
+
+    /**
+     * 远程文件已经改变，从头重新下载
+     *
+     * @return false 重新开始的次数已经用完
+     */
+    private boolean restart() {
+        if (mRestartCount >= MAX_RESTART_COUNT) {
+            return false;
+        }
+        //文件关闭后再重新探测，新的文件信息和日志中的校验值不一致，日志会被重置；
+        //等待期间仍然占着名额，用户暂停时取消重新开始
+        synchronized (this) {
+            isRestartPending = true;
         }
-        return "";
+        stopAllRunnables();
+        return true;
+    }
+
+    /**
+     * 文件关闭后取出重新开始的标记，和stopDownload互斥
+     */
+    private synchronized boolean takeRestartPending() {
+        boolean isPending = isRestartPending;
+        isRestartPending = false;
+        return isPending;
+    }
+
+    /**
+     * 服务器忽略了Range，停止所有连接，文件关闭后改为一个连接从头下载，不再拆分区间
+     *
+     * @return false 已经是一个连接下载
+     */
+    private boolean fallbackToSingleStream() {
+        if (isRangeDisabled) {
+            return false;
+        }
+        isRangeDisabled = true;
+        mMaxThreadSize = 1;
+        //用户暂停时取消重新排队
+        synchronized (this) {
+            isFallbackPending = true;
+        }
+        stopAllRunnables();
+        return true;
+    }
+
+    /**
+     * 文件关闭后取出改为一个连接重新排队的标记，和stopDownload互斥
+     */
+    private synchronized boolean takeFallbackPending() {
+        boolean isPending = isFallbackPending;
+        isFallbackPending = false;
+        return isPending;
+    }
+
+    /**
+     * 服务器是否支持Range，探测时支持但下载时忽略Range的服务器也按不支持处理
+     */
+    boolean isRangeSupported() {
+        return mRemoteFile.isRangeSupported && !isRangeDisabled;
+    }
+
+    void setRestartCount(int restartCount) {
+        this.mRestartCount = restartCount;
+    }
+
+    /**
+     * 被高优先级的任务抢占，暂停下载让出名额，之后从断点继续
+     */
+    void preempt() {
+        isPreempted = true;
+        stopAllRunnables();
+    }
+
+    /**
+     * 是否已经被抢占
+     */
+    boolean isPreempted() {
+        return isPreempted;
+    }
+
+    /**
+     * 重新排队等待下载
+     */
+    void prepareRequeue() {
+        isPreempted = false;
+        mStatus = DownloadStatus.STATUS_WAITING;
+    }
+
+    /**
+     * 获取优先级
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    void setPriority(int priority) {
+        this.mPriority = priority;
+        BandwidthLimiter.Share share = mBandwidthShare;
+        if (share != null) {
+            share.setWeight(priority + 1);
+        }
+    }
+
+    /**
+     * 进入等待队列的顺序，同优先级先进先出
+     */
+    long getSequence() {
+        return mSequence;
+    }
+
+    void setSequence(long sequence) {
+        this.mSequence = sequence;
     }
 
     /**
      * 停止下载
      */
     public void stopDownload() {
+        boolean isRequeueCancelled;
+        boolean isRestartCancelled;
+        boolean isFallbackCancelled;
+        synchronized (this) {
+            isPreempted = false;
+            isRequeueCancelled = isRequeuePending;
+            isRequeuePending = false;
+            isRestartCancelled = isRestartPending;
+            isRestartPending = false;
+            isFallbackCancelled = isFallbackPending;
+            isFallbackPending = false;
+        }
+        stopAllRunnables();
+        if (isRequeueCancelled || isRestartCancelled || isFallbackCancelled) {
+            //被抢占后等待重新排队、远程文件改变后等待重新开始或者等待改为一个连接，用户暂停后都不再继续
+            mCallback.onPause(new File(folder, name));
+            DownloadDispatcher.getInstance().recyclerTask(DownloadTask.this);
+        }
+    }
+
+    /**
+     * 被抢占的任务暂停后标记为等待重新排队，和stopDownload互斥，用户已经暂停时不再排队
+     *
+     * @return false 没有被抢占
+     */
+    private synchronized boolean markRequeuePending() {
+        if (!isPreempted) {
+            return false;
+        }
+        isRequeuePending = true;
+        return true;
+    }
+
+    /**
+     * 文件关闭后取出重新排队的标记
+     */
+    private synchronized boolean takeRequeuePending() {
+        boolean isPending = isRequeuePending;
+        isRequeuePending = false;
+        return isPending;
+    }
+
+    private void stopAllRunnables() {
         mStatus = DownloadStatus.STATUS_STOP;
         for (DownloadRunnable runnable : mDownloadRunnables) {
             runnable.stop();
         }
+        SmallFileRunnable smallFileRunnable = mSmallFileRunnable;
+        if (smallFileRunnable != null) {
+            smallFileRunnable.stop();
+        }
+    }
+
+    /**
+     * 镜像地址
+     */
+    MirrorSelector getMirrors() {
+        return mMirrors;
+    }
+
+    /**
+     * 探测请求得到的远程文件信息
+     */
+    RemoteFile getRemoteFile() {
+        return mRemoteFile;
+    }
+
+    private void close(Response response) {
+        if (response != null) {
+            response.close();
+        }
     }
 
     /**
@@ -264,6 +1010,24 @@ public class DownloadTask {
         return this.tag;
     }
 
+    /**
+     * 下载优先级
+     */
+    public interface DownloadPriority {
+        /**
+         * 后台预下载
+         */
+        int PRIORITY_LOW = 0;
+        /**
+         * 默认
+         */
+        int PRIORITY_NORMAL = 5;
+        /**
+         * 用户主动触发的下载，可以抢占低优先级任务
+         */
+        int PRIORITY_HIGH = 10;
+    }
+
     /**
      * 下载状态
      */
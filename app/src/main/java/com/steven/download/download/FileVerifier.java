@@ -0,0 +1,136 @@
+package com.steven.download.download;
+
+import com.steven.download.transfer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * 边下载边计算整个文件的校验值。从文件开头连续写入的数据直接计算，不用再读文件；
+ * 其它区间先写入的部分在计算位置追上时从文件中读取，这时数据通常还在页缓存中
+ */
+class FileVerifier {
+    private MessageDigest mMessageDigest;
+    private CRC32 mCrc32;
+    /**
+     * 已经计算到的位置，之前的数据都已经计算
+     */
+    private long mFrontier;
+    /**
+     * 计算位置之后已经写入的区间 start -> end(不包含)
+     */
+    private TreeMap<Long, Long> mWrittenRanges = new TreeMap<>();
+
+    FileVerifier(String algorithm) throws IOException {
+        if (DownloadDigest.Algorithm.CRC32.equalsIgnoreCase(algorithm)) {
+            mCrc32 = new CRC32();
+            return;
+        }
+        try {
+            mMessageDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("unsupported digest algorithm " + algorithm, e);
+        }
+    }
+
+    /**
+     * 记录写入文件的数据
+     *
+     * @param data     写入的数据，从position开始
+     * @param position 在文件中的位置
+     * @param file     数据不连续时从文件中读取
+     */
+    synchronized void update(ByteBuffer data, long position, DownloadFile file) throws IOException {
+        long end = position + data.remaining();
+        if (end <= mFrontier) {
+            return;
+        }
+        if (position > mFrontier) {
+            //和前面写入的区间相连时合并，一个下载区间只占一项
+            Map.Entry<Long, Long> previous = mWrittenRanges.floorEntry(position);
+            if (previous != null && previous.getValue() >= position) {
+                mWrittenRanges.put(previous.getKey(), Math.max(previous.getValue(), end));
+            } else {
+                mWrittenRanges.put(position, end);
+            }
+            return;
+        }
+        //跳过已经计算过的部分
+        data.position(data.position() + (int) (mFrontier - position));
+        digest(data);
+        mFrontier = end;
+        catchUp(file);
+    }
+
+    /**
+     * 计算位置追上了已经写入的区间，从文件中读取
+     */
+    private void catchUp(DownloadFile file) throws IOException {
+        Map.Entry<Long, Long> entry;
+        while ((entry = mWrittenRanges.firstEntry()) != null && entry.getKey() <= mFrontier) {
+            mWrittenRanges.remove(entry.getKey());
+            if (entry.getValue() > mFrontier) {
+                read(file, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 从文件中读取并计算 mFrontier 到 end 的数据
+     */
+    private void read(DownloadFile file, long end) throws IOException {
+        ByteBuffer buffer = BufferPool.getInstance().acquire();
+        try {
+            while (mFrontier < end) {
+                buffer.clear();
+                if (buffer.remaining() > end - mFrontier) {
+                    buffer.limit((int) (end - mFrontier));
+                }
+                int length = file.read(buffer, mFrontier);
+                if (length == -1) {
+                    throw new IOException("unexpected end of file at " + mFrontier);
+                }
+                buffer.flip();
+                digest(buffer);
+                mFrontier += length;
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private void digest(ByteBuffer data) {
+        if (mCrc32 != null) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            mCrc32.update(bytes, 0, bytes.length);
+        } else {
+            mMessageDigest.update(data);
+        }
+    }
+
+    /**
+     * 下载完成，计算剩余的部分，断点续传时之前已经下载的数据也在这里读取
+     *
+     * @return 十六进制的校验值
+     */
+    synchronized String finish(DownloadFile file, long contentLength) throws IOException {
+        mWrittenRanges.clear();
+        read(file, contentLength);
+        if (mCrc32 != null) {
+            return String.format(Locale.US, "%08x", mCrc32.getValue());
+        }
+        byte[] bytes = mMessageDigest.digest();
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+}
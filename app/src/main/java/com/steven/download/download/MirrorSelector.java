@@ -0,0 +1,169 @@
+package com.steven.download.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 同一个文件的多个镜像地址。每次请求区间时按镜像的实测速度加权随机选择，速度越快分到的区间越多；
+ * 连续失败或者返回的不是同一个文件的镜像不再使用，至少保留一个镜像
+ */
+class MirrorSelector {
+    /**
+     * 连续失败多少次后不再使用
+     */
+    private static final int MAX_FAILURE_COUNT = 2;
+    /**
+     * 速度的平滑系数，新的采样所占的比例
+     */
+    private static final double SMOOTHING = 0.3;
+    private final List<Mirror> mMirrors = new ArrayList<>();
+
+    /**
+     * @param urls 镜像地址，第一个是探测请求使用的主地址
+     */
+    MirrorSelector(List<String> urls) {
+        for (String url : urls) {
+            if (find(url) == null) {
+                mMirrors.add(new Mirror(url));
+            }
+        }
+        //主地址已经被探测请求使用过
+        mMirrors.get(0).isSelected = true;
+    }
+
+    /**
+     * 为下一个区间请求选择镜像，还没有用过的镜像优先，之后按速度加权随机，没有测过速度的镜像按当前最快的速度计算
+     *
+     * @return 镜像地址
+     */
+    synchronized String select() {
+        for (Mirror mirror : mMirrors) {
+            if (!mirror.isDisabled && !mirror.isSelected) {
+                mirror.isSelected = true;
+                return mirror.url;
+            }
+        }
+        double maxRate = 0;
+        for (Mirror mirror : mMirrors) {
+            if (!mirror.isDisabled) {
+                maxRate = Math.max(maxRate, mirror.rate);
+            }
+        }
+        double totalWeight = 0;
+        for (Mirror mirror : mMirrors) {
+            if (!mirror.isDisabled) {
+                totalWeight += weightOf(mirror, maxRate);
+            }
+        }
+        double random = Math.random() * totalWeight;
+        Mirror selected = null;
+        for (Mirror mirror : mMirrors) {
+            if (mirror.isDisabled) {
+                continue;
+            }
+            selected = mirror;
+            random -= weightOf(mirror, maxRate);
+            if (random < 0) {
+                break;
+            }
+        }
+        return selected.url;
+    }
+
+    private double weightOf(Mirror mirror, double maxRate) {
+        if (mirror.rate > 0) {
+            return mirror.rate;
+        }
+        return maxRate > 0 ? maxRate : 1;
+    }
+
+    /**
+     * 记录镜像的下载速度，读到数据说明镜像可用，清除失败次数
+     *
+     * @param length 下载的长度
+     * @param millis 用时
+     */
+    synchronized void onTransferred(String url, long length, long millis) {
+        Mirror mirror = find(url);
+        if (mirror == null || length <= 0) {
+            return;
+        }
+        mirror.failureCount = 0;
+        double rate = (double) length / Math.max(1, millis);
+        mirror.rate = mirror.rate <= 0 ? rate : mirror.rate * (1 - SMOOTHING) + rate * SMOOTHING;
+    }
+
+    /**
+     * 镜像请求失败，连续失败超过次数后不再使用
+     */
+    synchronized void onFailure(String url) {
+        Mirror mirror = find(url);
+        if (mirror != null && ++mirror.failureCount >= MAX_FAILURE_COUNT) {
+            disable(mirror);
+        }
+    }
+
+    /**
+     * 镜像返回的文件和主地址不一致，立即停用
+     */
+    synchronized void disable(String url) {
+        Mirror mirror = find(url);
+        if (mirror != null) {
+            disable(mirror);
+        }
+    }
+
+    private void disable(Mirror mirror) {
+        int availableCount = 0;
+        for (Mirror m : mMirrors) {
+            if (!m.isDisabled) {
+                availableCount++;
+            }
+        }
+        //最后一个镜像保留，由重试次数决定任务是否失败
+        if (availableCount > 1) {
+            mirror.isDisabled = true;
+        }
+    }
+
+    /**
+     * 所有镜像地址
+     */
+    synchronized List<String> getUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Mirror mirror : mMirrors) {
+            urls.add(mirror.url);
+        }
+        return urls;
+    }
+
+    private Mirror find(String url) {
+        for (Mirror mirror : mMirrors) {
+            if (mirror.url.equals(url)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static class Mirror {
+        private String url;
+        /**
+         * 平滑后的速度 bytes/ms，0 表示还没有测过
+         */
+        private double rate;
+        /**
+         * 连续失败的次数
+         */
+        private int failureCount;
+        private boolean isDisabled;
+        /**
+         * 是否已经被选择过
+         */
+        private boolean isSelected;
+
+        Mirror(String url) {
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,699 @@
+package com.steven.download.download;
+
+import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.BufferPool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import okhttp3.HttpUrl;
+
+/**
+ * 非阻塞引擎中的一个区间连接，驱动一个DownloadRunnable：发送Range请求、解析响应头、读取响应体写入文件。
+ * 区间下载完后领取下一个区间，服务器允许时复用同一个连接。只在事件循环线程中调用，
+ * 写入文件、同步磁盘、记录断点、校验和回调都交给引擎的文件线程执行，结果交回事件循环，期间不读取连接
+ */
+class NioConnection {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /**
+     * 响应头的最大长度
+     */
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_WRITING_REQUEST = 2;
+    private static final int STATE_READING_HEADERS = 3;
+    private static final int STATE_READING_BODY = 4;
+    /**
+     * 限速，等待令牌
+     */
+    private static final int STATE_SUSPENDED = 5;
+    private static final int STATE_FINISHED = 6;
+    /**
+     * 出错后等待重试
+     */
+    private static final int STATE_RETRY_WAIT = 7;
+    /**
+     * 等待文件线程写入文件、领取区间、回收或者判断重试
+     */
+    private static final int STATE_WAITING_FILE = 8;
+    private NioDownloadEngine.Loop mLoop;
+    private DownloadRunnable mRunnable;
+    private HttpUrl mHttpUrl;
+    private InetSocketAddress mAddress;
+    private Selector mSelector;
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private int mState;
+    private ByteBuffer mRequestBuffer;
+    private ByteBuffer mHeaderBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    /**
+     * 从共用的池中借出，连接结束后归还
+     */
+    private ByteBuffer mBuffer = BufferPool.getInstance().acquire();
+    /**
+     * 远程文件的ETag或Last-Modified，作为If-Range发送
+     */
+    private String mValidator;
+    /**
+     * 当前区间 {start, end}
+     */
+    private long[] mRange;
+    /**
+     * 当前响应还没有读取的长度，-1 表示读到连接关闭
+     */
+    private long mBodyRemaining;
+    /**
+     * 当前响应结束后连接是否可以复用
+     */
+    private boolean isKeepAlive;
+    /**
+     * 上次读写的时间，用于超时
+     */
+    private long mLastActiveTime;
+    /**
+     * 限速或者等待重试结束的时间
+     */
+    private long mResumeTime;
+    /**
+     * buffer清空后开始读取的时间，数据等待写入太久时不等读满
+     */
+    private long mFillTime;
+    private long mConnectTimeout;
+    private long mReadTimeout;
+    /**
+     * 文件线程写入的结果，交回事件循环后读取
+     */
+    private int mWriteStep;
+    private boolean isNextRange;
+    /**
+     * 请求回收时的检查结果
+     */
+    private int mRetireStep;
+    /**
+     * 没有回收时是重新请求区间还是继续写入buffer
+     */
+    private boolean isRetireBeforeOpen;
+    /**
+     * 当前区间的错误和重试前等待的毫秒数，-1 表示不能重试
+     */
+    private IOException mFailure;
+    private long mRetryDelay;
+    /**
+     * 在文件线程中写入buffer，区间下载完时领取下一个区间
+     */
+    private final DiskTask mWriteTask = new DiskTask() {
+        @Override
+        void runOnDisk() throws IOException {
+            mWriteStep = mRunnable.writeRange(mBuffer);
+            isNextRange = mWriteStep == DownloadRunnable.STEP_RANGE_FINISHED && mRunnable.nextRange();
+        }
+
+        @Override
+        void onDone(IOException e) throws IOException {
+            onWritten(e);
+        }
+    };
+    /**
+     * 新增加的线程一开始没有区间，在文件线程中窃取，可能要同步被拆分线程的断点日志
+     */
+    private final DiskTask mNextRangeTask = new DiskTask() {
+        @Override
+        void runOnDisk() throws IOException {
+            mWriteStep = DownloadRunnable.STEP_RANGE_FINISHED;
+            isNextRange = mRunnable.nextRange();
+        }
+
+        @Override
+        void onDone(IOException e) throws IOException {
+            onWritten(e);
+        }
+    };
+    /**
+     * 请求回收时在文件线程中同步磁盘并交回剩余区间，没有回收时继续
+     */
+    private final DiskTask mRetireTask = new DiskTask() {
+        @Override
+        void runOnDisk() throws IOException {
+            mRetireStep = mRunnable.checkState();
+        }
+
+        @Override
+        void onDone(IOException e) throws IOException {
+            if (e != null) {
+                throw e;
+            }
+            if (mRetireStep == DownloadRunnable.STEP_STOPPED) {
+                finish(false);
+            } else if (isRetireBeforeOpen) {
+                openRange();
+            } else {
+                reserve();
+            }
+        }
+    };
+    /**
+     * 出错后在文件线程中记录断点并判断能否重试，不能重试时回调onFailure
+     */
+    private final DiskTask mRetryTask = new DiskTask() {
+        @Override
+        void runOnDisk() {
+            mRetryDelay = -1;
+            mRetryDelay = mRange == null ? -1 : mRunnable.retryDelay(mFailure);
+            if (mRetryDelay < 0) {
+                mRunnable.fail(mFailure);
+            }
+        }
+
+        @Override
+        void onDone(IOException e) {
+            if (e != null) {
+                e.printStackTrace();
+            }
+            if (e == null && mRetryDelay >= 0) {
+                //等待后从失败的位置重新请求
+                mState = STATE_RETRY_WAIT;
+                mResumeTime = System.currentTimeMillis() + mRetryDelay;
+                return;
+            }
+            finish(false);
+        }
+    };
+
+    NioConnection(DownloadRunnable runnable, String validator) {
+        this.mRunnable = runnable;
+        this.mValidator = validator;
+        this.mConnectTimeout = OkHttpManager.getInstance().getDownloadClient().connectTimeoutMillis();
+        this.mReadTimeout = OkHttpManager.getInstance().getDownloadClient().readTimeoutMillis();
+    }
+
+    /**
+     * 加入事件循环，开始下载
+     */
+    void start(NioDownloadEngine.Loop loop) {
+        mLoop = loop;
+        mSelector = loop.getSelector();
+        mRunnable.beginRun();
+        if (mRunnable.getRemainingLength() <= 0) {
+            submit(mNextRangeTask);
+            return;
+        }
+        try {
+            openRange();
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(unexpected(e));
+        }
+    }
+
+    /**
+     * 请求当前区间，能复用连接时直接发送请求
+     */
+    private void openRange() throws IOException {
+        mRange = mRunnable.beginRange();
+        mHeaderBuffer.clear();
+        mBuffer.clear();
+        mLastActiveTime = System.currentTimeMillis();
+        mFillTime = mLastActiveTime;
+        if (mChannel != null && mChannel.isOpen()) {
+            //复用连接，继续使用同一个镜像
+            mRequestBuffer = ASCII.encode(buildRequest(mRange[0], mRange[1]));
+            mState = STATE_WRITING_REQUEST;
+            mKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        //新连接按镜像的速度选择地址，域名已经在引擎中解析过
+        mHttpUrl = HttpUrl.parse(mRunnable.selectMirror());
+        InetAddress address = NioDownloadEngine.getInstance().getAddress(mHttpUrl.host());
+        mAddress = new InetSocketAddress(address, mHttpUrl.port());
+        mRequestBuffer = ASCII.encode(buildRequest(mRange[0], mRange[1]));
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.socket().setTcpNoDelay(true);
+        //和OkHttp的连接使用同样的接收缓冲区
+        int receiveBufferSize = OkHttpManager.getTransferProfile().getReceiveBufferSize();
+        mChannel.socket().setReceiveBufferSize(receiveBufferSize > 0 ? receiveBufferSize : mBuffer.capacity() * 4);
+        if (mChannel.connect(mAddress)) {
+            mState = STATE_WRITING_REQUEST;
+            mKey = mChannel.register(mSelector, SelectionKey.OP_WRITE, this);
+        } else {
+            mState = STATE_CONNECTING;
+            mKey = mChannel.register(mSelector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private String buildRequest(long start, long end) {
+        String path = mHttpUrl.encodedPath();
+        String query = mHttpUrl.encodedQuery();
+        int port = mHttpUrl.port();
+        String host = port == HttpUrl.defaultPort(mHttpUrl.scheme()) ? mHttpUrl.host() : mHttpUrl.host() + ":" + port;
+        return "GET " + (query == null ? path : path + "?" + query) + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                //Range 请求头格式Range: bytes=start-end
+                + "Range: bytes=" + start + "-" + end + "\r\n"
+                + (mValidator == null ? "" : "If-Range: " + mValidator + "\r\n")
+                + "Accept-Encoding: identity\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n";
+    }
+
+    /**
+     * Selector选中了当前连接
+     */
+    void onSelected(SelectionKey key) {
+        if (mState == STATE_FINISHED || !key.isValid()) {
+            return;
+        }
+        try {
+            mLastActiveTime = System.currentTimeMillis();
+            if (mState == STATE_CONNECTING && key.isConnectable()) {
+                if (mChannel.finishConnect()) {
+                    mState = STATE_WRITING_REQUEST;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } else if (mState == STATE_WRITING_REQUEST && key.isWritable()) {
+                mChannel.write(mRequestBuffer);
+                if (!mRequestBuffer.hasRemaining()) {
+                    mState = STATE_READING_HEADERS;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (mState == STATE_READING_HEADERS && key.isReadable()) {
+                readHeaders();
+            } else if (mState == STATE_READING_BODY && key.isReadable()) {
+                readBody();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            //连接已经关闭时修改interestOps等，只让当前连接失败
+            fail(unexpected(e));
+        }
+    }
+
+    private void readHeaders() throws IOException {
+        if (mChannel.read(mHeaderBuffer) == -1) {
+            throw new IOException("connection closed before response headers, range " + mRange[0] + "-" + mRange[1]);
+        }
+        byte[] array = mHeaderBuffer.array();
+        int headerEnd = -1;
+        for (int i = 3; i < mHeaderBuffer.position(); i++) {
+            if (array[i - 3] == '\r' && array[i - 2] == '\n' && array[i - 1] == '\r' && array[i] == '\n') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            if (!mHeaderBuffer.hasRemaining()) {
+                throw new IOException("response headers too large");
+            }
+            return;
+        }
+        if (!parseHeaders(new String(array, 0, headerEnd, ASCII))) {
+            handOver();
+            return;
+        }
+        mState = STATE_READING_BODY;
+        //响应头之后已经读到的部分是响应体
+        int bodyLength = mHeaderBuffer.position() - headerEnd;
+        if (bodyLength > 0) {
+            mBuffer.put(array, headerEnd, (int) (mBodyRemaining >= 0 ? Math.min(bodyLength, mBodyRemaining) : bodyLength));
+            if (mBodyRemaining >= 0) {
+                mBodyRemaining -= Math.min(bodyLength, mBodyRemaining);
+            }
+        }
+        if (mBuffer.position() >= mRunnable.getRemainingLength() || mBodyRemaining == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * 解析响应头，只接受从区间开始位置返回的响应
+     *
+     * @return false 重定向或者分块传输的响应，需要交给线程池
+     */
+    private boolean parseHeaders(String headers) throws IOException {
+        String[] lines = headers.split("\r\n");
+        String[] statusLine = lines[0].split(" ");
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+            throw new IOException("unexpected status line " + lines[0]);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected status line " + lines[0]);
+        }
+        isKeepAlive = !statusLine[0].equals("HTTP/1.0");
+        mBodyRemaining = -1;
+        String contentRange = null;
+        String eTag = null;
+        String lastModified = null;
+        String location = null;
+        boolean isEncoded = false;
+        for (int i = 1; i < lines.length; i++) {
+            int index = lines[i].indexOf(':');
+            if (index <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, index).trim().toLowerCase(Locale.US);
+            String value = lines[i].substring(index + 1).trim();
+            if (name.equals("content-length")) {
+                mBodyRemaining = parseContentLength(value);
+            } else if (name.equals("content-range")) {
+                contentRange = value;
+            } else if (name.equals("etag")) {
+                eTag = value;
+            } else if (name.equals("last-modified")) {
+                lastModified = value;
+            } else if (name.equals("connection")) {
+                isKeepAlive = !value.equalsIgnoreCase("close");
+            } else if (name.equals("location")) {
+                location = value;
+            } else if (name.equals("transfer-encoding") && !value.equalsIgnoreCase("identity")) {
+                isEncoded = true;
+            }
+        }
+        //重定向和分块传输由OkHttp处理
+        boolean isRedirect = code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+        if ((isRedirect && location != null) || isEncoded) {
+            return false;
+        }
+        //只接受从区间开始位置返回的响应
+        mRunnable.checkResponse(mRange[0], code, contentRange, mBodyRemaining, eTag, lastModified);
+        if (mBodyRemaining < 0) {
+            isKeepAlive = false;
+        }
+        return true;
+    }
+
+    /**
+     * 服务器返回的Content-Length不合法时和其它响应错误一样重试
+     */
+    private static long parseContentLength(String value) throws IOException {
+        long length;
+        try {
+            length = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid Content-Length " + value);
+        }
+        if (length < 0) {
+            throw new IOException("invalid Content-Length " + value);
+        }
+        return length;
+    }
+
+    private void readBody() throws IOException {
+        if (mBodyRemaining >= 0 && mBuffer.remaining() > mBodyRemaining) {
+            mBuffer.limit(mBuffer.position() + (int) mBodyRemaining);
+        }
+        int length = mChannel.read(mBuffer);
+        mBuffer.limit(mBuffer.capacity());
+        if (length == -1) {
+            //连接已关闭，当作响应结束，写入剩余数据后区间还没有下载完则失败
+            mBodyRemaining = 0;
+            isKeepAlive = false;
+            flush();
+            return;
+        }
+        if (mBodyRemaining >= 0) {
+            mBodyRemaining -= length;
+        }
+        //读满一个buffer，区间、响应已经读完，或者暂停、回收、数据等待太久时写入
+        if (!mBuffer.hasRemaining() || mBuffer.position() >= mRunnable.getRemainingLength() || mBodyRemaining == 0
+                || !mRunnable.isRunning() || mLastActiveTime - mFillTime >= DownloadRunnable.FLUSH_INTERVAL) {
+            flush();
+        }
+    }
+
+    /**
+     * 把buffer中的数据写入文件，暂停时结束，请求回收时先交给文件线程回收
+     */
+    private void flush() {
+        mBuffer.flip();
+        if (mRunnable.isStopped()) {
+            finish(true);
+            return;
+        }
+        if (!mRunnable.isRunning()) {
+            isRetireBeforeOpen = false;
+            submit(mRetireTask);
+            return;
+        }
+        reserve();
+    }
+
+    /**
+     * 申请令牌后写入文件，令牌不足时暂停读取
+     */
+    private void reserve() {
+        long delay = mRunnable.getBandwidthShare().reserve(mBuffer.remaining());
+        if (delay > 0) {
+            mState = STATE_SUSPENDED;
+            mResumeTime = System.currentTimeMillis() + delay;
+            mKey.interestOps(0);
+            return;
+        }
+        write();
+    }
+
+    /**
+     * 交给文件线程写入文件，写完之前不再读取连接
+     */
+    private void write() {
+        submit(mWriteTask);
+    }
+
+    /**
+     * 交给文件线程执行，完成之前不再读取连接
+     */
+    private void submit(DiskTask task) {
+        mState = STATE_WAITING_FILE;
+        if (mKey != null) {
+            mKey.interestOps(0);
+        }
+        NioDownloadEngine.getInstance().executeOnDisk(task);
+    }
+
+    /**
+     * 文件写入完成，区间下载完时请求下一个区间，否则继续读取
+     *
+     * @param e 写入、窃取区间时的错误
+     */
+    private void onWritten(IOException e) throws IOException {
+        if (e != null) {
+            throw e;
+        }
+        mBuffer.clear();
+        mLastActiveTime = System.currentTimeMillis();
+        mFillTime = mLastActiveTime;
+        if (mWriteStep == DownloadRunnable.STEP_RANGE_FINISHED) {
+            //区间被缩短时响应还没有读完，不能复用
+            if (!isKeepAlive || mBodyRemaining != 0) {
+                closeChannel();
+            }
+            if (isNextRange) {
+                openRange();
+            } else {
+                finish(false);
+            }
+            return;
+        }
+        if (mBodyRemaining == 0) {
+            throw new IOException("unexpected end of response, range " + mRange[0] + "-" + mRange[1]);
+        }
+        mState = STATE_READING_BODY;
+        mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * 定时检查：限速或者等待重试结束后继续，任务暂停时结束，读写超时时失败
+     */
+    void onTick(long now) {
+        if (mState == STATE_FINISHED) {
+            return;
+        }
+        if (mState == STATE_WAITING_FILE) {
+            //写入完成后再检查暂停和超时
+            return;
+        }
+        try {
+            if (mState == STATE_SUSPENDED) {
+                if (now >= mResumeTime) {
+                    mLastActiveTime = now;
+                    write();
+                }
+                return;
+            }
+            if (mState == STATE_RETRY_WAIT) {
+                //重新连接前检查是否暂停或者被回收
+                if (mRunnable.isStopped()) {
+                    finish(true);
+                } else if (now >= mResumeTime) {
+                    if (mRunnable.isRunning()) {
+                        openRange();
+                    } else {
+                        isRetireBeforeOpen = true;
+                        submit(mRetireTask);
+                    }
+                }
+                return;
+            }
+            if (mRunnable.isStopped()) {
+                //没有数据到达时也能及时暂停
+                finish(true);
+                return;
+            }
+            long timeout = mState == STATE_CONNECTING ? mConnectTimeout : mReadTimeout;
+            if (timeout > 0 && now - mLastActiveTime > timeout) {
+                throw new SocketTimeoutException("timeout, range " + mRange[0] + "-" + mRange[1]);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(unexpected(e));
+        }
+    }
+
+    /**
+     * 事件循环中的运行时异常只让当前连接失败，和读写出错一样判断能否重试
+     */
+    private IOException unexpected(RuntimeException e) {
+        return new IOException("unexpected error, range " + (mRange == null ? "none" : mRange[0] + "-" + mRange[1]), e);
+    }
+
+    /**
+     * 关闭出错的连接，记录断点和判断能否重试交给文件线程
+     */
+    private void fail(IOException e) {
+        if (mState == STATE_FINISHED) {
+            return;
+        }
+        closeChannel();
+        mFailure = e;
+        submit(mRetryTask);
+    }
+
+    /**
+     * 结束连接，记录断点需要同步磁盘，交给文件线程执行
+     *
+     * @param isStopped 任务已经暂停，先回调onPause
+     */
+    private void finish(final boolean isStopped) {
+        if (mState == STATE_FINISHED) {
+            return;
+        }
+        release();
+        final DownloadRunnable runnable = mRunnable;
+        NioDownloadEngine.getInstance().executeOnDisk(new Runnable() {
+            @Override
+            public void run() {
+                if (isStopped) {
+                    try {
+                        runnable.checkState();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                runnable.finish();
+            }
+        });
+    }
+
+    /**
+     * 重定向和分块传输的响应交给线程池，响应体还没有读取，下载线程从当前位置继续，连接结束
+     */
+    private void handOver() {
+        release();
+        final DownloadRunnable runnable = mRunnable;
+        NioDownloadEngine.getInstance().executeOnDisk(new Runnable() {
+            @Override
+            public void run() {
+                runnable.handOverToThread();
+            }
+        });
+    }
+
+    /**
+     * 关闭连接并归还buffer，不再处理这个连接
+     */
+    private void release() {
+        mState = STATE_FINISHED;
+        closeChannel();
+        BufferPool.getInstance().release(mBuffer);
+        mBuffer = null;
+    }
+
+    private void closeChannel() {
+        if (mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mChannel = null;
+        }
+    }
+
+    boolean isFinished() {
+        return mState == STATE_FINISHED;
+    }
+
+    /**
+     * 在文件线程中执行的操作，完成后交回事件循环继续。每个连接同时只有一个操作，执行期间处于STATE_WAITING_FILE
+     */
+    private abstract class DiskTask implements Runnable {
+        private IOException mException;
+        private final Runnable mDoneTask = new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_WAITING_FILE) {
+                    return;
+                }
+                try {
+                    onDone(mException);
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(unexpected(e));
+                }
+            }
+        };
+
+        @Override
+        public void run() {
+            mException = null;
+            try {
+                runOnDisk();
+            } catch (IOException e) {
+                mException = e;
+            } catch (RuntimeException e) {
+                mException = unexpected(e);
+            }
+            mLoop.post(mDoneTask);
+        }
+
+        /**
+         * 在文件线程中执行
+         */
+        abstract void runOnDisk() throws IOException;
+
+        /**
+         * 回到事件循环后执行
+         *
+         * @param e 文件线程中的错误，没有时为null
+         */
+        abstract void onDone(IOException e) throws IOException;
+    }
+}
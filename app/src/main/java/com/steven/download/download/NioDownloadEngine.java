@@ -0,0 +1,284 @@
+package com.steven.download.download;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+
+/**
+ * 非阻塞下载引擎，少量事件循环线程通过Selector同时处理大量区间连接，每个连接不再占用一个线程。
+ * 只支持http，https的区间以及重定向和分块传输的响应仍然由线程池下载
+ */
+class NioDownloadEngine {
+    private static volatile NioDownloadEngine sNioDownloadEngine;
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    /**
+     * 事件循环线程数
+     */
+    private static final int LOOP_SIZE = Math.max(1, Math.min(CPU_COUNT / 2, 2));
+    /**
+     * 文件线程数，连接的写入文件、同步磁盘、记录断点和回调都在文件线程中执行
+     */
+    private static final int DISK_THREAD_SIZE = Math.max(2, Math.min(CPU_COUNT, 4));
+    /**
+     * 空闲文件线程的存活时间
+     */
+    private static final long DISK_KEEP_ALIVE_SECONDS = 60;
+    /**
+     * 事件循环的检查间隔，用于超时、暂停和限速后的恢复
+     */
+    static final long TICK_INTERVAL = 100;
+    /**
+     * 域名解析结果的有效期，过期后下一个区间线程开始时重新解析
+     */
+    private static final long ADDRESS_TTL = 60 * 1000;
+    private final Loop[] mLoops = new Loop[LOOP_SIZE];
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    /**
+     * 域名解析的缓存，避免在事件循环线程中阻塞解析
+     */
+    private final Map<String, CachedAddress> mAddressCache = new ConcurrentHashMap<>();
+    /**
+     * 事件循环专用的文件线程池，和传输线程池分开，不会排在阻塞下载的线程之后，也不会在事件循环中执行。
+     * 每个连接同时最多只有一个操作在等待，队列长度不超过连接数
+     */
+    private final ThreadPoolExecutor mDiskExecutor;
+
+    private NioDownloadEngine() {
+        mDiskExecutor = new ThreadPoolExecutor(DISK_THREAD_SIZE, DISK_THREAD_SIZE, DISK_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-nio-disk-" + mThreadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDiskExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static NioDownloadEngine getInstance() {
+        if (sNioDownloadEngine == null) {
+            synchronized (NioDownloadEngine.class) {
+                if (sNioDownloadEngine == null) {
+                    sNioDownloadEngine = new NioDownloadEngine();
+                }
+            }
+        }
+        return sNioDownloadEngine;
+    }
+
+    /**
+     * 是否可以用非阻塞引擎下载
+     */
+    static boolean isSupported(List<String> urls) {
+        for (String url : urls) {
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl == null || !"http".equals(httpUrl.scheme())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在事件循环中执行下载线程，调用方不会阻塞
+     *
+     * @param runnable 下载线程，失败时回调onFailure并结束
+     */
+    void execute(DownloadRunnable runnable) {
+        //先在调用线程中解析所有镜像的域名，事件循环中直接使用缓存
+        MirrorSelector mirrors = runnable.getMirrors();
+        IOException exception = null;
+        boolean isResolved = false;
+        for (String url : mirrors.getUrls()) {
+            try {
+                resolve(HttpUrl.parse(url).host());
+                isResolved = true;
+            } catch (IOException e) {
+                exception = e;
+                mirrors.disable(url);
+            }
+        }
+        if (!isResolved) {
+            runnable.beginRun();
+            runnable.fail(exception);
+            runnable.finish();
+            return;
+        }
+        NioConnection connection = new NioConnection(runnable, runnable.getValidator());
+        loop().register(connection);
+    }
+
+    /**
+     * 在文件线程中执行可能阻塞的操作，完成后由操作自己交回事件循环
+     */
+    void executeOnDisk(Runnable task) {
+        mDiskExecutor.execute(task);
+    }
+
+    /**
+     * 解析域名，缓存没有过期时直接使用，在调用线程中执行
+     */
+    InetAddress resolve(String host) throws IOException {
+        CachedAddress cached = mAddressCache.get(host);
+        if (cached != null && System.currentTimeMillis() < cached.mExpireTime) {
+            return cached.mAddress;
+        }
+        InetAddress address = InetAddress.getByName(host);
+        mAddressCache.put(host, new CachedAddress(address, System.currentTimeMillis() + ADDRESS_TTL));
+        return address;
+    }
+
+    /**
+     * 事件循环中获取域名的地址，过期的缓存也直接使用，不阻塞事件循环；缓存在下一个区间线程开始时刷新
+     */
+    InetAddress getAddress(String host) throws IOException {
+        CachedAddress cached = mAddressCache.get(host);
+        return cached != null ? cached.mAddress : resolve(host);
+    }
+
+    /**
+     * 轮流分配事件循环，需要时创建
+     */
+    private synchronized Loop loop() {
+        int index = (mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % LOOP_SIZE;
+        if (mLoops[index] == null || !mLoops[index].isAlive()) {
+            mLoops[index] = new Loop(index);
+            mLoops[index].start();
+        }
+        return mLoops[index];
+    }
+
+    /**
+     * 缓存的域名解析结果
+     */
+    private static class CachedAddress {
+        private final InetAddress mAddress;
+        private final long mExpireTime;
+
+        CachedAddress(InetAddress address, long expireTime) {
+            this.mAddress = address;
+            this.mExpireTime = expireTime;
+        }
+    }
+
+    /**
+     * 事件循环线程。连接内部的异常只让对应的连接失败，这里的异常处理只是保证事件循环不会退出，
+     * 否则同一个Selector上的其它连接都不会再被处理
+     */
+    static class Loop extends Thread {
+        private final Selector mSelector;
+        /**
+         * 等待加入事件循环的连接，其它线程加入
+         */
+        private final Queue<NioConnection> mPendingConnections = new ConcurrentLinkedQueue<>();
+        /**
+         * 其它线程交回事件循环执行的操作，如文件写入完成后恢复读取
+         */
+        private final Queue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
+        /**
+         * 事件循环中的连接，只在事件循环线程中访问
+         */
+        private final List<NioConnection> mConnections = new ArrayList<>();
+
+        Loop(int index) {
+            super("download-nio-" + index);
+            setDaemon(true);
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("open selector failed", e);
+            }
+        }
+
+        void register(NioConnection connection) {
+            mPendingConnections.offer(connection);
+            mSelector.wakeup();
+        }
+
+        /**
+         * 在事件循环线程中执行，可以在任意线程调用
+         */
+        void post(Runnable task) {
+            mPendingTasks.offer(task);
+            mSelector.wakeup();
+        }
+
+        Selector getSelector() {
+            return mSelector;
+        }
+
+        @Override
+        public void run() {
+            long lastTick = 0;
+            while (true) {
+                try {
+                    mSelector.select(TICK_INTERVAL);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                NioConnection pending;
+                while ((pending = mPendingConnections.poll()) != null) {
+                    mConnections.add(pending);
+                    try {
+                        pending.start(this);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                Runnable task;
+                while ((task = mPendingTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        ((NioConnection) key.attachment()).onSelected(key);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_INTERVAL) {
+                    lastTick = now;
+                    //超时、暂停检查和限速后的恢复
+                    for (int i = 0; i < mConnections.size(); i++) {
+                        try {
+                            mConnections.get(i).onTick(now);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                for (Iterator<NioConnection> it = mConnections.iterator(); it.hasNext(); ) {
+                    if (it.next().isFinished()) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.steven.download.download;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进度汇总，所有下载线程的进度累加到一个计数器，按时间间隔或者进度步长合并成一次回调，
+ * 下载线程不需要为每次写入去竞争任务的锁和调用用户回调
+ */
+class ProgressAggregator {
+    /**
+     * 已下载的长度，minSdkVersion 16 不能使用LongAdder
+     */
+    private final AtomicLong mCurrentLength;
+    /**
+     * 上次回调的时间
+     */
+    private final AtomicLong mLastNotifyTime = new AtomicLong();
+    /**
+     * 上次回调的进度
+     */
+    private long mLastNotifyLength = -1;
+    /**
+     * 文件的大小
+     */
+    private final long mTotalLength;
+    /**
+     * 回调的最小时间间隔
+     */
+    private final long mInterval;
+    /**
+     * 进度增加超过该长度时不等时间间隔直接回调
+     */
+    private final long mStepLength;
+    private final DownloadCallback mCallback;
+
+    /**
+     * @param currentLength 已下载的长度
+     * @param totalLength   文件的大小
+     * @param interval      回调的最小时间间隔 ms
+     * @param step          进度步长 0~1
+     * @param callback      回调
+     */
+    ProgressAggregator(long currentLength, long totalLength, long interval, float step, DownloadCallback callback) {
+        this.mCurrentLength = new AtomicLong(currentLength);
+        this.mTotalLength = totalLength;
+        this.mInterval = interval;
+        this.mStepLength = Math.max(1, (long) (totalLength * step));
+        this.mCallback = callback;
+    }
+
+    /**
+     * 累加下载的长度，满足时间间隔或者进度步长时回调
+     */
+    void add(long length) {
+        long current = mCurrentLength.addAndGet(length);
+        long lastTime = mLastNotifyTime.get();
+        long now = System.currentTimeMillis();
+        if (now - lastTime < mInterval && current - mLastNotifyLength < mStepLength) {
+            return;
+        }
+        //同一时刻只有一个线程负责回调
+        if (mLastNotifyTime.compareAndSet(lastTime, now)) {
+            notifyProgress();
+        }
+    }
+
+    /**
+     * 回调准确的最终进度，下载完成或者暂停时调用
+     */
+    void finish() {
+        notifyProgress();
+    }
+
+    /**
+     * 已下载的长度
+     */
+    long getCurrentLength() {
+        return mCurrentLength.get();
+    }
+
+    private synchronized void notifyProgress() {
+        //回调的线程可能晚于其它线程，进度只增不减
+        long current = mCurrentLength.get();
+        if (current > mLastNotifyLength) {
+            mLastNotifyLength = current;
+            mCallback.onProgress(current, mTotalLength);
+        }
+    }
+}
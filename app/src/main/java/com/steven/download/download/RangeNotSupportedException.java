@@ -0,0 +1,14 @@
+package com.steven.download.download;
+
+import java.io.IOException;
+
+/**
+ * 服务器忽略了Range请求，对中间的区间返回了整个文件，需要改为一个连接从头下载
+ */
+class RangeNotSupportedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RangeNotSupportedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,140 @@
+package com.steven.download.download;
+
+import android.text.TextUtils;
+
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 探测请求得到的远程文件信息，探测请求带 Range: bytes=0- ，一次往返同时得到文件大小、是否支持断点和校验信息
+ */
+class RemoteFile {
+    /**
+     * 文件的大小，-1 表示未知
+     */
+    final long contentLength;
+    /**
+     * 服务器是否支持Range请求
+     */
+    final boolean isRangeSupported;
+    /**
+     * ETag，可能为null
+     */
+    final String eTag;
+    /**
+     * Last-Modified，可能为null
+     */
+    final String lastModified;
+    /**
+     * 服务器是否使用HTTP/2，所有区间作为多个流复用同一个连接
+     */
+    final boolean isMultiplexed;
+
+    private RemoteFile(long contentLength, boolean isRangeSupported, String eTag, String lastModified, boolean isMultiplexed) {
+        this.contentLength = contentLength;
+        this.isRangeSupported = isRangeSupported;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.isMultiplexed = isMultiplexed;
+    }
+
+    /**
+     * 用于If-Range的校验值，优先使用强ETag，弱ETag不能用于If-Range
+     *
+     * @return 没有可用的校验值时返回null
+     */
+    String getValidator() {
+        if (!TextUtils.isEmpty(eTag) && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * 镜像返回的是否是同一个文件：大小一致，双方都有强ETag时ETag也要一致
+     *
+     * @param totalLength 镜像返回的文件大小，-1 表示未知，不比较
+     * @param eTag        镜像返回的ETag，可能为null
+     */
+    boolean isSameFile(long totalLength, String eTag) {
+        if (totalLength >= 0 && totalLength != contentLength) {
+            return false;
+        }
+        if (TextUtils.isEmpty(this.eTag) || this.eTag.startsWith("W/") || TextUtils.isEmpty(eTag) || eTag.startsWith("W/")) {
+            return true;
+        }
+        return this.eTag.equals(eTag);
+    }
+
+    /**
+     * 解析探测请求的响应
+     */
+    static RemoteFile parse(Response response) {
+        long contentLength = -1;
+        boolean isRangeSupported = false;
+        if (response.code() == 206) {
+            //Content-Range: bytes 0-999/1000
+            contentLength = parseTotalLength(response.header("Content-Range"));
+            isRangeSupported = contentLength > 0;
+        }
+        if (contentLength < 0 && "HEAD".equals(response.request().method())) {
+            //HEAD没有响应体，从响应头中读取文件大小，Accept-Ranges表示是否支持Range
+            contentLength = parseLong(response.header("Content-Length"));
+            isRangeSupported = contentLength > 0 && "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+        } else if (contentLength < 0) {
+            ResponseBody body = response.body();
+            contentLength = body == null ? -1 : body.contentLength();
+        }
+        boolean isMultiplexed = response.protocol() == Protocol.HTTP_2 || response.protocol() == Protocol.H2_PRIOR_KNOWLEDGE;
+        return new RemoteFile(contentLength, isRangeSupported, response.header("ETag"), response.header("Last-Modified"), isMultiplexed);
+    }
+
+    /**
+     * 解析Content-Range中的文件总大小
+     *
+     * @return 文件总大小，无法解析时返回-1
+     */
+    static long parseTotalLength(String contentRange) {
+        if (TextUtils.isEmpty(contentRange)) {
+            return -1;
+        }
+        int index = contentRange.lastIndexOf('/');
+        if (index < 0 || index == contentRange.length() - 1) {
+            return -1;
+        }
+        return parseLong(contentRange.substring(index + 1));
+    }
+
+    /**
+     * 解析Content-Range中的开始位置
+     *
+     * @return 开始位置，无法解析时返回-1
+     */
+    static long parseRangeStart(String contentRange) {
+        if (TextUtils.isEmpty(contentRange)) {
+            return -1;
+        }
+        //Content-Range: bytes start-end/total
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        if (dash <= space + 1) {
+            return -1;
+        }
+        return parseLong(contentRange.substring(space + 1, dash));
+    }
+
+    /**
+     * @return 无法解析或者是负数时返回-1
+     */
+    private static long parseLong(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.steven.download.download;
+
+import java.io.IOException;
+
+/**
+ * 续传时远程文件已经改变，服务器对If-Range返回了整个新文件
+ */
+class RemoteFileChangedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RemoteFileChangedException(String message) {
+        super(message);
+    }
+}
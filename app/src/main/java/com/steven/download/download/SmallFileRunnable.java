@@ -0,0 +1,200 @@
+package com.steven.download.download;
+
+import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.BufferPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * 小文件下载线程：一个连接顺序写入，不拆分区间，不写断点日志。暂停后下次从头下载
+ */
+class SmallFileRunnable implements Runnable {
+    /**
+     * 等待重试时检查是否暂停的间隔
+     */
+    private static final long RETRY_CHECK_INTERVAL = 100;
+    private volatile int mStatus = DownloadTask.DownloadStatus.STATUS_DOWNLOADING;
+    private DownloadTask mTask;
+    private File mFile;
+    private String url;
+    private long mContentLength;
+    /**
+     * 探测请求的响应，从0开始，直接读取
+     */
+    private Response mInitialResponse;
+    /**
+     * 已经写入的长度
+     */
+    private long mPosition;
+    private DownloadCallback downloadCallback;
+
+    SmallFileRunnable(DownloadTask task, File file, String url, long contentLength, Response initialResponse, DownloadCallback downloadCallback) {
+        this.mTask = task;
+        this.mFile = file;
+        this.url = url;
+        this.mContentLength = contentLength;
+        this.mInitialResponse = initialResponse;
+        this.downloadCallback = downloadCallback;
+    }
+
+    @Override
+    public void run() {
+        FileChannel channel = null;
+        try {
+            //覆盖上次没有下载完的文件
+            channel = new FileOutputStream(mFile).getChannel();
+            int failureCount = 0;
+            while (true) {
+                try {
+                    if (download(channel)) {
+                        channel.force(false);
+                        close(channel);
+                        channel = null;
+                        downloadCallback.onSuccess(mFile);
+                    }
+                    return;
+                } catch (IOException e) {
+                    //失败时从已写入的位置重试，服务器不支持Range时跳过已写入的部分
+                    long delay = e instanceof RemoteFileChangedException || isStopped() ? -1 : mTask.getRetryDelay(++failureCount);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                    if (!awaitRetry(delay)) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (isStopped()) {
+                downloadCallback.onPause(mFile);
+            } else {
+                downloadCallback.onFailure(e);
+            }
+        } finally {
+            close(mInitialResponse);
+            close(channel);
+            mTask.finishSmallFile();
+        }
+    }
+
+    /**
+     * 从mPosition下载到文件结束
+     *
+     * @return false 下载被暂停
+     */
+    private boolean download(FileChannel channel) throws IOException {
+        Response response = mInitialResponse;
+        mInitialResponse = null;
+        if (response == null) {
+            String validator = mTask.getRemoteFile().getValidator();
+            response = OkHttpManager.getInstance().syncResponse(url, mPosition, mContentLength - 1, validator);
+            //返回的校验值和If-Range相同说明文件没有改变，只是服务器忽略了Range
+            if (validator != null && response.code() == 200 && mPosition > 0
+                    && !validator.equals(response.header("ETag")) && !validator.equals(response.header("Last-Modified"))) {
+                close(response);
+                throw new RemoteFileChangedException("remote file changed, If-Range " + validator + ", url " + url);
+            }
+            //只接受从mPosition开始的响应
+            boolean isExpected = response.code() == 206
+                    ? RemoteFile.parseRangeStart(response.header("Content-Range")) == mPosition : response.code() == 200;
+            if (!isExpected) {
+                close(response);
+                throw new IOException("unexpected response " + response.code() + ", position " + mPosition + ", url " + url);
+            }
+        }
+        BufferedSource source = response.body().source();
+        if (response.code() == 200 && mPosition > 0) {
+            //服务器忽略了Range，返回整个文件，跳过已经写入的部分，小文件的代价不大
+            source.skip(mPosition);
+        }
+        ByteBuffer buffer = BufferPool.getInstance().acquire();
+        try {
+            FileVerifier verifier = mTask.getVerifier();
+            while (mPosition < mContentLength) {
+                if (isStopped()) {
+                    downloadCallback.onPause(mFile);
+                    return false;
+                }
+                buffer.clear();
+                if (buffer.remaining() > mContentLength - mPosition) {
+                    buffer.limit((int) (mContentLength - mPosition));
+                }
+                if (source.read(buffer) == -1) {
+                    throw new IOException("unexpected end of stream at " + mPosition + ", url " + url);
+                }
+                buffer.flip();
+                mTask.getBandwidthShare().acquire(buffer.remaining());
+                ByteBuffer data = buffer.duplicate();
+                int length = 0;
+                while (buffer.hasRemaining()) {
+                    length += channel.write(buffer, mPosition + length);
+                }
+                if (verifier != null) {
+                    verifier.update(data, mPosition, null);
+                }
+                mPosition += length;
+                downloadCallback.onProgress(length, mContentLength);
+            }
+            return true;
+        } finally {
+            close(source);
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * 等待重试
+     *
+     * @return false 等待期间任务被暂停，已回调onPause
+     */
+    private boolean awaitRetry(long delay) throws IOException {
+        long deadline = System.currentTimeMillis() + delay;
+        long now;
+        while ((now = System.currentTimeMillis()) < deadline && !isStopped()) {
+            try {
+                Thread.sleep(Math.min(RETRY_CHECK_INTERVAL, deadline - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for retry");
+            }
+        }
+        if (isStopped()) {
+            downloadCallback.onPause(mFile);
+            return false;
+        }
+        return true;
+    }
+
+    boolean isStopped() {
+        return mStatus == DownloadTask.DownloadStatus.STATUS_STOP;
+    }
+
+    /**
+     * 停止下载
+     */
+    void stop() {
+        mStatus = DownloadTask.DownloadStatus.STATUS_STOP;
+    }
+
+    /**
+     * 关闭流
+     */
+    private void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
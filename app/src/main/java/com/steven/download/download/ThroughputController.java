@@ -0,0 +1,115 @@
+package com.steven.download.download;
+
+/**
+ * 连接数控制器，按固定间隔采样任务的下载速度：增加连接后速度有明显提升就继续增加，
+ * 没有提升说明带宽已经饱和，回收刚增加的连接，之后隔一段时间再重新试探
+ */
+class ThroughputController {
+    /**
+     * 保持当前连接数
+     */
+    static final int ACTION_KEEP = 0;
+    /**
+     * 增加一个连接
+     */
+    static final int ACTION_ADD = 1;
+    /**
+     * 回收一个连接
+     */
+    static final int ACTION_RETIRE = 2;
+    /**
+     * 采样间隔，新连接需要握手，间隔太短测不出新连接的效果
+     */
+    private static final long SAMPLE_INTERVAL = 2000;
+    /**
+     * 增加连接后速度至少提升的比例
+     */
+    private static final float MIN_GAIN = 0.1f;
+    /**
+     * 带宽饱和后，经过多少次采样重新试探增加连接
+     */
+    private static final int PROBE_SAMPLES = 5;
+    /**
+     * 最大连接数
+     */
+    private int mMaxThreadSize;
+    /**
+     * 上次采样的时间
+     */
+    private long mLastSampleTime;
+    /**
+     * 上次采样时已下载的长度
+     */
+    private long mLastLength;
+    /**
+     * 上次采样的速度 bytes/s
+     */
+    private long mLastSpeed;
+    /**
+     * 上次采样后是否真的增加了连接，由onAdded确认
+     */
+    private boolean isLastAdded;
+    /**
+     * 带宽饱和后已经采样的次数，-1 表示没有饱和
+     */
+    private int mSaturatedSamples = -1;
+
+    ThroughputController(int maxThreadSize) {
+        this.mMaxThreadSize = maxThreadSize;
+    }
+
+    /**
+     * 采样下载速度
+     *
+     * @param totalLength 已下载的总长度
+     * @param threadSize  当前的连接数
+     * @return ACTION_KEEP、ACTION_ADD 或 ACTION_RETIRE
+     */
+    int sample(long totalLength, int threadSize) {
+        return sample(totalLength, threadSize, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now 采样的时间
+     */
+    int sample(long totalLength, int threadSize, long now) {
+        if (mLastSampleTime == 0) {
+            mLastSampleTime = now;
+            mLastLength = totalLength;
+            return ACTION_KEEP;
+        }
+        long elapsed = now - mLastSampleTime;
+        if (elapsed < SAMPLE_INTERVAL) {
+            return ACTION_KEEP;
+        }
+        long speed = (totalLength - mLastLength) * 1000 / elapsed;
+        mLastSampleTime = now;
+        mLastLength = totalLength;
+        int action = ACTION_KEEP;
+        if (isLastAdded && speed < mLastSpeed * (1 + MIN_GAIN)) {
+            //增加的连接没有带来提升
+            mSaturatedSamples = 0;
+            if (threadSize > 1) {
+                action = ACTION_RETIRE;
+            }
+        } else if (mSaturatedSamples >= 0 && ++mSaturatedSamples >= PROBE_SAMPLES) {
+            mSaturatedSamples = -1;
+        }
+        if (action == ACTION_KEEP && mSaturatedSamples < 0 && threadSize < mMaxThreadSize) {
+            action = ACTION_ADD;
+        }
+        //返回ACTION_ADD时由调用方确认是否真的增加了连接，没有增加时下次采样不能当作新连接没有带来提升
+        isLastAdded = false;
+        mLastSpeed = speed;
+        return action;
+    }
+
+    /**
+     * sample返回ACTION_ADD后确认是否增加了连接
+     *
+     * @param isAdded false 没有可以拆分的区间、线程池已满或者线程池拒绝，连接没有增加
+     */
+    void onAdded(boolean isAdded) {
+        isLastAdded = isAdded;
+    }
+}
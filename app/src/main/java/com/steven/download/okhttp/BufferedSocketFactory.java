@@ -0,0 +1,57 @@
+package com.steven.download.okhttp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * 创建socket时设置缓冲区大小，OkHttp先创建未连接的socket再连接，接收缓冲区在连接之前设置
+ */
+class BufferedSocketFactory extends SocketFactory {
+    private final SocketFactory mDelegate;
+    private final int mReceiveBufferSize;
+    private final int mSendBufferSize;
+
+    BufferedSocketFactory(SocketFactory delegate, int receiveBufferSize, int sendBufferSize) {
+        this.mDelegate = delegate;
+        this.mReceiveBufferSize = receiveBufferSize;
+        this.mSendBufferSize = sendBufferSize;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return configure(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return configure(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return configure(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return configure(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return configure(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket configure(Socket socket) throws IOException {
+        if (mReceiveBufferSize > 0) {
+            socket.setReceiveBufferSize(mReceiveBufferSize);
+        }
+        if (mSendBufferSize > 0) {
+            socket.setSendBufferSize(mSendBufferSize);
+        }
+        return socket;
+    }
+}
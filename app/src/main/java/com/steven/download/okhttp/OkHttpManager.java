@@ -1,30 +1,117 @@
 package com.steven.download.okhttp;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
 /**
- * OkHttpManager 可以自定义 OkhttpClient,如：设置https
+ * OkHttpManager 可以自定义 OkhttpClient,如：设置https。下载和上传按 {@link TransferProfile} 各自派生一个client，共用连接池和请求调度
  */
 public class OkHttpManager {
+    /**
+     * 所有服务器同时执行的异步请求数的下限
+     */
+    private static final int MIN_MAX_REQUESTS = 64;
 
     private static OkHttpManager okHttpManager;
     private static OkHttpClient mOkHttpClient;
+    private static TransferProfile mTransferProfile = new TransferProfile();
+    /**
+     * DownloadDispatcher同时下载需要的连接数，连接池和同一个服务器的请求数不少于该值
+     */
+    private static int sDownloadConnectionSize;
+    /**
+     * 直接使用HTTP/2的明文服务器
+     */
+    private static final Set<String> sPriorKnowledgeHosts = new CopyOnWriteArraySet<>();
+    /**
+     * 由mOkHttpClient按传输配置派生，为null时重新创建
+     */
+    private static OkHttpClient mDownloadClient;
+    private static OkHttpClient mUploadClient;
+    /**
+     * 只用于sPriorKnowledgeHosts中的http请求
+     */
+    private static OkHttpClient mPriorKnowledgeDownloadClient;
+    private static OkHttpClient mPriorKnowledgeUploadClient;
 
     /**
-     * 设置okHttp
+     * 设置okHttp，https、代理、拦截器等设置保留，连接池、请求数限制、超时和socket缓冲区按传输配置重新设置
      *
      * @param okHttpClient 自定义okHttp
      */
     public static void setOkhttpClient(OkHttpClient okHttpClient) {
-        mOkHttpClient = okHttpClient;
+        synchronized (OkHttpManager.class) {
+            mOkHttpClient = okHttpClient;
+            resetClients();
+        }
+    }
+
+    /**
+     * 设置传输配置，之后的请求使用新的连接池，正在进行的请求不受影响
+     *
+     * @param transferProfile 传输配置
+     */
+    public static void setTransferProfile(TransferProfile transferProfile) {
+        synchronized (OkHttpManager.class) {
+            mTransferProfile = transferProfile == null ? new TransferProfile() : transferProfile;
+            resetClients();
+        }
+    }
+
+    /**
+     * 获取传输配置
+     *
+     * @return TransferProfile
+     */
+    public static TransferProfile getTransferProfile() {
+        synchronized (OkHttpManager.class) {
+            return mTransferProfile;
+        }
+    }
+
+    /**
+     * 设置下载需要的连接数，由DownloadDispatcher在最大任务数、连接数或者区间数改变时调用，之后的请求使用新的连接池
+     *
+     * @param connectionSize 最大任务数 * 单个任务的最大连接数，HTTP/2时为最大区间数
+     */
+    public static void setDownloadConnectionSize(int connectionSize) {
+        synchronized (OkHttpManager.class) {
+            if (sDownloadConnectionSize != connectionSize) {
+                sDownloadConnectionSize = connectionSize;
+                resetClients();
+            }
+        }
+    }
+
+    private static void resetClients() {
+        mDownloadClient = null;
+        mUploadClient = null;
+        mPriorKnowledgeDownloadClient = null;
+        mPriorKnowledgeUploadClient = null;
+    }
+
+    /**
+     * 指定直接使用HTTP/2的明文服务器(h2c)，如内网的下载服务器或者本地测试服务器。https的服务器通过ALPN协商HTTP/2，不需要设置；
+     * 使用HTTP/2时同一个服务器的所有区间作为流复用一个连接
+     *
+     * @param host 服务器的主机名，不包含端口
+     */
+    public static void addHttp2PriorKnowledgeHost(String host) {
+        sPriorKnowledgeHosts.add(host);
     }
 
     /**
@@ -36,12 +123,93 @@ public class OkHttpManager {
         return mOkHttpClient;
     }
 
+    /**
+     * 下载使用的client
+     *
+     * @return OkHttpClient
+     */
+    public OkHttpClient getDownloadClient() {
+        synchronized (OkHttpManager.class) {
+            createClients();
+            return mDownloadClient;
+        }
+    }
+
+    /**
+     * 上传使用的client
+     *
+     * @return OkHttpClient
+     */
+    public OkHttpClient getUploadClient() {
+        synchronized (OkHttpManager.class) {
+            createClients();
+            return mUploadClient;
+        }
+    }
+
     private OkHttpManager() {
         if (mOkHttpClient == null) {
             mOkHttpClient = new OkHttpClient();
         }
     }
 
+    /**
+     * 按传输配置派生下载和上传的client，调用时已持有OkHttpManager.class的锁
+     */
+    private static void createClients() {
+        if (mDownloadClient != null) {
+            return;
+        }
+        if (mOkHttpClient == null) {
+            mOkHttpClient = new OkHttpClient();
+        }
+        TransferProfile profile = mTransferProfile;
+        int connectionSize = Math.max(profile.getConnectionSize(), sDownloadConnectionSize);
+        //默认同一个服务器最多同时执行5个异步请求，多出的探测请求和上传会排队
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(MIN_MAX_REQUESTS, connectionSize));
+        dispatcher.setMaxRequestsPerHost(connectionSize);
+        OkHttpClient.Builder builder = mOkHttpClient.newBuilder()
+                .connectionPool(new ConnectionPool(connectionSize, profile.getKeepAlive(), TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .connectTimeout(profile.getConnectTimeout(), TimeUnit.MILLISECONDS);
+        if (profile.getReceiveBufferSize() > 0 || profile.getSendBufferSize() > 0) {
+            builder.socketFactory(new BufferedSocketFactory(mOkHttpClient.socketFactory(), profile.getReceiveBufferSize(), profile.getSendBufferSize()));
+        }
+        OkHttpClient transferClient = builder.build();
+        //newBuilder共用连接池和请求调度
+        mDownloadClient = transferClient.newBuilder()
+                .readTimeout(profile.getDownloadReadTimeout(), TimeUnit.MILLISECONDS)
+                .writeTimeout(profile.getDownloadWriteTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+        mUploadClient = transferClient.newBuilder()
+                .readTimeout(profile.getUploadReadTimeout(), TimeUnit.MILLISECONDS)
+                .writeTimeout(profile.getUploadWriteTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+        mPriorKnowledgeDownloadClient = mDownloadClient.newBuilder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+        mPriorKnowledgeUploadClient = mUploadClient.newBuilder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+    }
+
+    /**
+     * 按传输方向选择client，明文的HTTP/2服务器使用prior knowledge的client
+     *
+     * @param isUpload 是否是上传请求
+     */
+    private Call newCall(Request request, boolean isUpload) {
+        boolean isPriorKnowledge = !request.isHttps() && sPriorKnowledgeHosts.contains(request.url().host());
+        synchronized (OkHttpManager.class) {
+            createClients();
+            if (isUpload) {
+                return (isPriorKnowledge ? mPriorKnowledgeUploadClient : mUploadClient).newCall(request);
+            }
+            return (isPriorKnowledge ? mPriorKnowledgeDownloadClient : mDownloadClient).newCall(request);
+        }
+    }
+
     public static OkHttpManager getInstance() {
         if (okHttpManager == null) {
             synchronized (OkHttpManager.class) {
@@ -63,7 +231,36 @@ public class OkHttpManager {
         Request request = new Request.Builder()
                 .url(url)
                 .build();
-        return mOkHttpClient.newCall(request);
+        return newCall(request, false);
+    }
+
+    /**
+     * 探测请求，带 Range: bytes=0- ，服务器支持断点时返回206，响应体可以直接作为第一个区间下载
+     *
+     * @param url url
+     * @return 请求
+     */
+    public Call asyncProbeCall(String url) {
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("Range", "bytes=0-")
+                .build();
+        return newCall(request, false);
+    }
+
+    /**
+     * 异步HEAD探测请求，只获取文件信息，没有响应体，连接可以立即复用
+     *
+     * @param url url
+     * @return Call
+     */
+    public Call asyncHeadCall(String url) {
+        Request request = new Request.Builder()
+                .url(url)
+                .head()
+                .addHeader("Range", "bytes=0-")
+                .build();
+        return newCall(request, false);
     }
 
     /**
@@ -81,7 +278,29 @@ public class OkHttpManager {
                 //Range 请求头格式Range: bytes=start-end
                 .addHeader("Range", "bytes=" + start + "-" + end)
                 .build();
-        return mOkHttpClient.newCall(request).execute();
+        return newCall(request, false).execute();
+    }
+
+    /**
+     * 续传请求，远程文件和ifRange不一致时服务器返回200和整个文件
+     *
+     * @param url     url
+     * @param start   开始位置
+     * @param end     接收位置
+     * @param ifRange 续传校验值ETag或Last-Modified，为null时不校验
+     * @return 响应消息体
+     * @throws IOException io异常
+     */
+    public Response syncResponse(String url, long start, long end, String ifRange) throws IOException {
+        if (ifRange == null) {
+            return syncResponse(url, start, end);
+        }
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("Range", "bytes=" + start + "-" + end)
+                .addHeader("If-Range", ifRange)
+                .build();
+        return newCall(request, false).execute();
     }
 
     /**
@@ -106,6 +325,18 @@ public class OkHttpManager {
      * @throws IOException io异常
      */
     public Response syncPostResponse(String url, String clientId, RequestBody requestBody) throws IOException {
+        return postCall(url, clientId, requestBody).execute();
+    }
+
+    /**
+     * 上传请求，调用方持有Call，暂停时可以取消正在进行的上传
+     *
+     * @param url         url
+     * @param clientId    clientId
+     * @param requestBody 上传body
+     * @return 请求
+     */
+    public Call postCall(String url, String clientId, RequestBody requestBody) {
         Request request = new Request
                 .Builder()
                 .header("Authorization", "Client-ID " + clientId)
@@ -113,7 +344,7 @@ public class OkHttpManager {
                 .url(url)
                 .post(requestBody)
                 .build();
-        return mOkHttpClient.newCall(request).execute();
+        return newCall(request, true);
     }
 
     /**
@@ -143,7 +374,7 @@ public class OkHttpManager {
                 .url(url)
                 .post(requestBody)
                 .build();
-        mOkHttpClient.newCall(request).enqueue(callback);
+        newCall(request, true).enqueue(callback);
     }
 
 }
@@ -0,0 +1,164 @@
+package com.steven.download.okhttp;
+
+/**
+ * 大文件传输使用的OkHttpClient配置。默认的OkHttpClient适合短小的接口请求，连接池只保留5个空闲连接，
+ * 同一个服务器最多同时执行5个异步请求，下载时多个任务的区间连接会被关闭重连或者排队等待。
+ * 下载和上传各自派生一个client，共用连接池和请求调度，超时时间按传输方向分别设置
+ */
+public class TransferProfile {
+    /**
+     * 同时传输的最大任务数
+     */
+    private int maxTaskSize = 3;
+    /**
+     * 单个任务最多同时使用的连接数
+     */
+    private int segmentSize = 8;
+    /**
+     * 空闲连接保留的时间 ms
+     */
+    private long keepAlive = 5 * 60 * 1000;
+    /**
+     * 连接超时 ms
+     */
+    private long connectTimeout = 15 * 1000;
+    /**
+     * 下载时读取数据的超时 ms
+     */
+    private long downloadReadTimeout = 30 * 1000;
+    /**
+     * 下载时发送请求的超时 ms，请求只有请求头
+     */
+    private long downloadWriteTimeout = 10 * 1000;
+    /**
+     * 上传时发送数据的超时 ms
+     */
+    private long uploadWriteTimeout = 60 * 1000;
+    /**
+     * 上传完成后等待服务器响应的超时 ms
+     */
+    private long uploadReadTimeout = 60 * 1000;
+    /**
+     * socket接收缓冲区大小，0 表示使用系统默认值
+     */
+    private int receiveBufferSize = 256 * 1024;
+    /**
+     * socket发送缓冲区大小，0 表示使用系统默认值
+     */
+    private int sendBufferSize = 256 * 1024;
+
+    /**
+     * 设置连接数，连接池保留 maxTaskSize * segmentSize 个空闲连接，同一个服务器最多同时执行同样多的请求。
+     * 下载时实际的连接数不少于 DownloadDispatcher 的最大任务数 * 单个任务的最大连接数(HTTP/2时为最大区间数)，
+     * 修改 DownloadDispatcher 的设置后自动调整，只有上传等需要更多连接时才需要设置
+     *
+     * @param maxTaskSize 同时传输的最大任务数，默认3
+     * @param segmentSize 单个任务最多同时使用的连接数，默认8
+     * @return
+     */
+    public TransferProfile setConnectionSize(int maxTaskSize, int segmentSize) {
+        this.maxTaskSize = Math.max(1, maxTaskSize);
+        this.segmentSize = Math.max(1, segmentSize);
+        return this;
+    }
+
+    /**
+     * 设置空闲连接保留的时间
+     *
+     * @param keepAlive 时间 ms，默认5分钟
+     * @return
+     */
+    public TransferProfile setKeepAlive(long keepAlive) {
+        this.keepAlive = Math.max(1, keepAlive);
+        return this;
+    }
+
+    /**
+     * 设置连接超时
+     *
+     * @param connectTimeout 时间 ms，默认15秒，0 表示不超时
+     * @return
+     */
+    public TransferProfile setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+        return this;
+    }
+
+    /**
+     * 设置下载的超时
+     *
+     * @param readTimeout  读取数据的超时 ms，默认30秒，0 表示不超时
+     * @param writeTimeout 发送请求的超时 ms，默认10秒，0 表示不超时
+     * @return
+     */
+    public TransferProfile setDownloadTimeout(long readTimeout, long writeTimeout) {
+        this.downloadReadTimeout = Math.max(0, readTimeout);
+        this.downloadWriteTimeout = Math.max(0, writeTimeout);
+        return this;
+    }
+
+    /**
+     * 设置上传的超时
+     *
+     * @param writeTimeout 发送数据的超时 ms，默认60秒，0 表示不超时
+     * @param readTimeout  等待服务器响应的超时 ms，默认60秒，0 表示不超时
+     * @return
+     */
+    public TransferProfile setUploadTimeout(long writeTimeout, long readTimeout) {
+        this.uploadWriteTimeout = Math.max(0, writeTimeout);
+        this.uploadReadTimeout = Math.max(0, readTimeout);
+        return this;
+    }
+
+    /**
+     * 设置socket缓冲区大小，高延迟的网络需要更大的接收缓冲区才能跑满带宽。接收缓冲区在连接之前设置，TCP窗口缩放才能生效
+     *
+     * @param receiveBufferSize 接收缓冲区大小，默认256KB，0 表示使用系统默认值
+     * @param sendBufferSize    发送缓冲区大小，默认256KB，0 表示使用系统默认值
+     * @return
+     */
+    public TransferProfile setSocketBufferSize(int receiveBufferSize, int sendBufferSize) {
+        this.receiveBufferSize = Math.max(0, receiveBufferSize);
+        this.sendBufferSize = Math.max(0, sendBufferSize);
+        return this;
+    }
+
+    /**
+     * 连接池保留的空闲连接数，同一个服务器最多同时执行的请求数
+     */
+    int getConnectionSize() {
+        return maxTaskSize * segmentSize;
+    }
+
+    long getKeepAlive() {
+        return keepAlive;
+    }
+
+    long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    long getDownloadReadTimeout() {
+        return downloadReadTimeout;
+    }
+
+    long getDownloadWriteTimeout() {
+        return downloadWriteTimeout;
+    }
+
+    long getUploadWriteTimeout() {
+        return uploadWriteTimeout;
+    }
+
+    long getUploadReadTimeout() {
+        return uploadReadTimeout;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+}
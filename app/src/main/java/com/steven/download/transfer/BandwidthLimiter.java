@@ -0,0 +1,195 @@
+package com.steven.download.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * 全局带宽限制，下载和上传共用一个速度上限，每个任务按权重分得一份令牌桶。
+ * 速度上限可以在运行时修改，已注册的任务在下一次获取令牌时按新的速度计算
+ */
+public class BandwidthLimiter {
+    private static volatile BandwidthLimiter sBandwidthLimiter;
+    /**
+     * 等待令牌时每次最多睡眠的时间，保证速度上限修改后能及时生效
+     */
+    private static final long MAX_SLEEP = 100;
+    /**
+     * 令牌桶最多积攒多少时间的令牌，避免空闲一段时间后突发
+     */
+    private static final long BURST_MILLIS = 250;
+    /**
+     * 全局速度上限 bytes/s，0 表示不限速
+     */
+    private volatile long mRate;
+    /**
+     * 所有已注册任务的权重之和
+     */
+    private int mTotalWeight;
+
+    private BandwidthLimiter() {
+    }
+
+    /**
+     * 获取带宽限制实例
+     *
+     * @return BandwidthLimiter
+     */
+    public static BandwidthLimiter getInstance() {
+        if (sBandwidthLimiter == null) {
+            synchronized (BandwidthLimiter.class) {
+                if (sBandwidthLimiter == null) {
+                    sBandwidthLimiter = new BandwidthLimiter();
+                }
+            }
+        }
+        return sBandwidthLimiter;
+    }
+
+    /**
+     * 设置下载和上传的总速度上限
+     *
+     * @param bytesPerSecond 速度上限 bytes/s，0 表示不限速
+     */
+    public void setRate(long bytesPerSecond) {
+        this.mRate = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * 获取总速度上限
+     */
+    public long getRate() {
+        return mRate;
+    }
+
+    /**
+     * 注册一个任务
+     *
+     * @param weight 权重，任务分得的速度 = 总速度 * weight / 所有任务的权重之和
+     * @return 任务的带宽份额，任务结束时调用 {@link Share#release()}
+     */
+    public Share register(int weight) {
+        return new Share(Math.max(1, weight));
+    }
+
+    private synchronized void addWeight(int weight) {
+        mTotalWeight += weight;
+    }
+
+    /**
+     * 权重对应的速度
+     *
+     * @return bytes/s，0 表示不限速
+     */
+    private long rateOf(int weight) {
+        long rate = mRate;
+        int totalWeight;
+        synchronized (this) {
+            totalWeight = mTotalWeight;
+        }
+        if (rate <= 0 || totalWeight <= 0) {
+            return 0;
+        }
+        return Math.max(1, rate * weight / totalWeight);
+    }
+
+    /**
+     * 一个任务的带宽份额，同一个任务的多个线程共用
+     */
+    public class Share {
+        private int mWeight;
+        /**
+         * 令牌数，可以为负数，表示已经透支，需要等待
+         */
+        private double mTokens;
+        private long mLastRefillTime = System.nanoTime();
+        private boolean isReleased;
+
+        private Share(int weight) {
+            this.mWeight = weight;
+            addWeight(weight);
+        }
+
+        /**
+         * 修改权重
+         */
+        public synchronized void setWeight(int weight) {
+            weight = Math.max(1, weight);
+            if (!isReleased) {
+                addWeight(weight - mWeight);
+            }
+            mWeight = weight;
+        }
+
+        /**
+         * 获取传输length字节的令牌，令牌不足时阻塞
+         *
+         * @param length 要传输的长度
+         * @throws IOException 等待时线程被中断
+         */
+        public void acquire(long length) throws IOException {
+            synchronized (this) {
+                long rate = rateOf(mWeight);
+                if (rate <= 0) {
+                    return;
+                }
+                refill(rate);
+                mTokens -= length;
+            }
+            while (true) {
+                long sleep;
+                synchronized (this) {
+                    long rate = rateOf(mWeight);
+                    if (rate <= 0) {
+                        //限速已取消，清除透支
+                        mTokens = 0;
+                        return;
+                    }
+                    refill(rate);
+                    if (mTokens >= 0) {
+                        return;
+                    }
+                    sleep = Math.min(MAX_SLEEP, (long) Math.ceil(-mTokens * 1000 / rate));
+                }
+                try {
+                    Thread.sleep(Math.max(1, sleep));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for bandwidth");
+                }
+            }
+        }
+
+        /**
+         * 不阻塞地预支length字节的令牌，用于不能睡眠的事件循环线程
+         *
+         * @param length 要传输的长度
+         * @return 传输前需要等待的毫秒数，0 表示可以立即传输
+         */
+        public synchronized long reserve(long length) {
+            long rate = rateOf(mWeight);
+            if (rate <= 0) {
+                mTokens = 0;
+                return 0;
+            }
+            refill(rate);
+            mTokens -= length;
+            return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / rate);
+        }
+
+        private void refill(long rate) {
+            long now = System.nanoTime();
+            mTokens = Math.min(rate * BURST_MILLIS / 1000.0, mTokens + (now - mLastRefillTime) * rate / 1e9);
+            mLastRefillTime = now;
+        }
+
+        /**
+         * 任务结束，归还权重
+         */
+        public synchronized void release() {
+            if (!isReleased) {
+                isReleased = true;
+                addWeight(-mWeight);
+            }
+        }
+    }
+}
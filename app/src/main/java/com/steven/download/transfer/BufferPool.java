@@ -0,0 +1,144 @@
+package com.steven.download.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 传输线程共用的DirectByteBuffer池，读写区间时借出，结束后归还，避免每个区间重新分配堆外内存
+ */
+public class BufferPool {
+    private static volatile BufferPool sBufferPool;
+    /**
+     * 默认buffer大小
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * 默认最多缓存的buffer个数
+     */
+    private static final int DEFAULT_MAX_POOLED = 32;
+    private volatile int mBufferSize = DEFAULT_BUFFER_SIZE;
+    private volatile int mMaxPooled = DEFAULT_MAX_POOLED;
+    private final Queue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<>();
+    /**
+     * 池中buffer的个数，ConcurrentLinkedQueue的size()需要遍历
+     */
+    private final AtomicInteger mPooledCount = new AtomicInteger();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    private BufferPool() {
+    }
+
+    /**
+     * 获取buffer池实例
+     *
+     * @return BufferPool
+     */
+    public static BufferPool getInstance() {
+        if (sBufferPool == null) {
+            synchronized (BufferPool.class) {
+                if (sBufferPool == null) {
+                    sBufferPool = new BufferPool();
+                }
+            }
+        }
+        return sBufferPool;
+    }
+
+    /**
+     * 设置buffer大小，越大每次写入文件的数据越多，系统调用越少。修改后旧大小的buffer归还时直接丢弃
+     *
+     * @param bufferSize buffer大小 8KB-1MB，默认64KB
+     * @return BufferPool
+     */
+    public BufferPool setBufferSize(int bufferSize) {
+        this.mBufferSize = bufferSize < MIN_BUFFER_SIZE ? MIN_BUFFER_SIZE : (bufferSize > MAX_BUFFER_SIZE ? MAX_BUFFER_SIZE : bufferSize);
+        clear();
+        return this;
+    }
+
+    /**
+     * 获取buffer大小
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * 设置最多缓存的buffer个数，超出的buffer归还时丢弃
+     *
+     * @param maxPooled buffer个数，默认32
+     * @return BufferPool
+     */
+    public BufferPool setMaxPooled(int maxPooled) {
+        this.mMaxPooled = Math.max(0, maxPooled);
+        return this;
+    }
+
+    /**
+     * 借出一个已经clear的buffer
+     */
+    public ByteBuffer acquire() {
+        int bufferSize = mBufferSize;
+        ByteBuffer buffer;
+        while ((buffer = mBuffers.poll()) != null) {
+            mPooledCount.decrementAndGet();
+            if (buffer.capacity() == bufferSize) {
+                mHitCount.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        mMissCount.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * 归还buffer，归还后不能再使用
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != mBufferSize) {
+            return;
+        }
+        if (mPooledCount.incrementAndGet() > mMaxPooled) {
+            mPooledCount.decrementAndGet();
+            return;
+        }
+        mBuffers.offer(buffer);
+    }
+
+    /**
+     * 清空池中的buffer
+     */
+    public void clear() {
+        while (mBuffers.poll() != null) {
+            mPooledCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 从池中借出的次数
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * 池中没有可用buffer、重新分配的次数
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * 池中的buffer个数
+     */
+    public int getPooledCount() {
+        return mPooledCount.get();
+    }
+}
@@ -0,0 +1,173 @@
+package com.steven.download.transfer;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载和上传共用的有界线程池。线程数固定上限，超出的传输线程在有界队列中等待，队列满时拒绝并由任务回调失败；
+ * 队列中有等待的线程时，下载任务不再增加连接
+ */
+public class TransferExecutor {
+    private static volatile TransferExecutor sTransferExecutor;
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    /**
+     * 默认线程数，传输线程大部分时间阻塞在网络读写上，可以比CPU核心数多
+     */
+    private static final int DEFAULT_THREAD_SIZE = Math.max(8, Math.min(CPU_COUNT * 4, 16));
+    /**
+     * 等待队列的容量
+     */
+    private static final int QUEUE_CAPACITY = 256;
+    /**
+     * 空闲线程的存活时间
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    /**
+     * 最大线程数
+     */
+    private int mThreadSize = DEFAULT_THREAD_SIZE;
+    /**
+     * 线程池
+     */
+    private ThreadPoolExecutor mExecutorService;
+
+    private TransferExecutor() {
+    }
+
+    /**
+     * 获取传输线程池实例
+     *
+     * @return TransferExecutor
+     */
+    public static TransferExecutor getInstance() {
+        if (sTransferExecutor == null) {
+            synchronized (TransferExecutor.class) {
+                if (sTransferExecutor == null) {
+                    sTransferExecutor = new TransferExecutor();
+                }
+            }
+        }
+        return sTransferExecutor;
+    }
+
+    /**
+     * 设置最大线程数，运行中修改会在线程空闲后生效
+     *
+     * @param threadSize 线程数 1-64
+     * @return TransferExecutor
+     */
+    public synchronized TransferExecutor setThreadSize(int threadSize) {
+        this.mThreadSize = threadSize < 1 ? 1 : (threadSize > 64 ? 64 : threadSize);
+        if (mExecutorService != null) {
+            //先调大的一方，避免core大于max
+            if (mThreadSize > mExecutorService.getMaximumPoolSize()) {
+                mExecutorService.setMaximumPoolSize(mThreadSize);
+                mExecutorService.setCorePoolSize(mThreadSize);
+            } else {
+                mExecutorService.setCorePoolSize(mThreadSize);
+                mExecutorService.setMaximumPoolSize(mThreadSize);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取最大线程数
+     */
+    public synchronized int getThreadSize() {
+        return mThreadSize;
+    }
+
+    /**
+     * 获取线程池，关闭后再次调用会重新创建
+     *
+     * @return ExecutorService
+     */
+    public synchronized ExecutorService executorService() {
+        if (mExecutorService == null || mExecutorService.isShutdown()) {
+            //核心线程数等于最大线程数，先创建线程再排队；空闲的核心线程也会超时回收
+            mExecutorService = new ThreadPoolExecutor(mThreadSize, mThreadSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "transfer-" + mThreadNumber.incrementAndGet());
+                    thread.setDaemon(false);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+            mExecutorService.allowCoreThreadTimeOut(true);
+        }
+        return mExecutorService;
+    }
+
+    /**
+     * 执行传输线程
+     *
+     * @param runnable 传输线程
+     * @throws RejectedExecutionException 等待队列已满或者线程池已关闭
+     */
+    public void execute(Runnable runnable) {
+        executorService().execute(runnable);
+    }
+
+    /**
+     * 是否已经没有空闲线程，新的线程需要排队
+     */
+    public synchronized boolean isBusy() {
+        return mExecutorService != null && (!mExecutorService.getQueue().isEmpty()
+                || mExecutorService.getActiveCount() >= mExecutorService.getMaximumPoolSize());
+    }
+
+    /**
+     * 正在执行的传输线程数
+     */
+    public synchronized int getActiveCount() {
+        return mExecutorService == null ? 0 : mExecutorService.getActiveCount();
+    }
+
+    /**
+     * 排队等待的传输线程数
+     */
+    public synchronized int getQueueSize() {
+        return mExecutorService == null ? 0 : mExecutorService.getQueue().size();
+    }
+
+    /**
+     * 已经执行完的传输线程数
+     */
+    public synchronized long getCompletedCount() {
+        return mExecutorService == null ? 0 : mExecutorService.getCompletedTaskCount();
+    }
+
+    /**
+     * 关闭线程池，不再接收新的传输线程，已经开始和排队的线程继续执行。
+     * 一般先调用DownloadDispatcher和UploadDispatcher的stopAll，传输线程会在下一次读写时退出
+     */
+    public synchronized void shutdown() {
+        if (mExecutorService != null) {
+            mExecutorService.shutdown();
+        }
+    }
+
+    /**
+     * 等待所有传输线程结束
+     *
+     * @return false 超时
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        ThreadPoolExecutor executorService;
+        synchronized (this) {
+            executorService = mExecutorService;
+        }
+        return executorService == null || executorService.awaitTermination(timeout, unit);
+    }
+}
@@ -1,44 +1,45 @@
 package com.steven.download.upload;
 
-import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
-import java.util.ArrayDeque;
+import com.steven.download.transfer.TransferExecutor;
+
 import java.util.Collection;
-import java.util.Deque;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 上传调度器
  */
 public class UploadDispatcher {
     private static volatile UploadDispatcher sUploadDispatcher;
-    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    /**
-     * 核心线程数
-     */
-    private static final int CORE_POOL_SIZE = Math.max(3, Math.min(CPU_COUNT - 1, 5));
     /**
      * 同时上传的最大任务数
      */
     private int maxTaskSize = 3;
     /**
-     * 线程池
+     * 分片大小，0 表示不分片，整个文件一次上传
      */
-    private ExecutorService mExecutorService;
+    private long partSize = 0;
     /**
-     * 准备上传的任务
+     * 单个任务同时上传的最大分片数
      */
-    private final Deque<UploadTask> readyTasks = new ArrayDeque<>();
+    private int maxPartThreadSize = 3;
+    /**
+     * 准备上传的任务，调用线程和上传线程都会修改，使用无锁队列
+     */
+    private final Queue<UploadTask> readyTasks = new ConcurrentLinkedQueue<>();
     /**
      * 正在上传的任务
      */
-    private final Deque<UploadTask> runningTasks = new ArrayDeque<>();
+    private final Queue<UploadTask> runningTasks = new ConcurrentLinkedQueue<>();
+    /**
+     * 正在上传的任务数，通过CAS占用和释放，不超过maxTaskSize
+     */
+    private final AtomicInteger runningCount = new AtomicInteger();
 
     /**
      * 获取上传调度实例
@@ -68,23 +69,43 @@ public class UploadDispatcher {
     }
 
     /**
-     * 创建线程池
+     * 设置分片大小，大于分片大小的文件分片并行上传，服务器确认的分片记录在日志中，失败后只重传缺少的分片。
+     * 服务器需要根据uploadId、partIndex、partCount、offset拼接文件
      *
-     * @return mExecutorService
-     */
-    public synchronized ExecutorService executorService() {
-        if (mExecutorService == null) {
-            mExecutorService = new ThreadPoolExecutor(CORE_POOL_SIZE, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
-                @Override
-                public Thread newThread(@NonNull Runnable r) {
-                    Thread thread = new Thread(r);
-                    thread.setDaemon(false);
-                    return thread;
-                }
-            });
-        }
-        return mExecutorService;
+     * @param partSize 分片大小，0 表示不分片，默认为0
+     * @return UploadDispatcher
+     */
+    public UploadDispatcher setPartSize(long partSize) {
+        this.partSize = Math.max(0, partSize);
+        return this;
+    }
+
+    /**
+     * 设置单个任务同时上传的最大分片数 默认为3
+     *
+     * @param maxPartThreadSize 最大分片数
+     * @return UploadDispatcher
+     */
+    public UploadDispatcher setMaxPartThreadSize(int maxPartThreadSize) {
+        this.maxPartThreadSize = maxPartThreadSize < 1 ? 1 : (maxPartThreadSize > 8 ? 8 : maxPartThreadSize);
+        return this;
+    }
+
+    long getPartSize() {
+        return partSize;
+    }
+
+    int getMaxPartThreadSize() {
+        return maxPartThreadSize;
+    }
+
+    /**
+     * 下载和上传共用的线程池，线程数通过TransferExecutor设置
+     *
+     * @return ExecutorService
+     */
+    public ExecutorService executorService() {
+        return TransferExecutor.getInstance().executorService();
     }
 
     /**
@@ -106,13 +127,15 @@ public class UploadDispatcher {
     public void startUpload(final String folder, final String name, final String url, final Object tag, final UploadCallback callBack) {
         UploadTask uploadTask = new UploadTask(folder, name, url, tag, callBack);
         // 将任务加入上传队列
-        if (runningTasks.size() < maxTaskSize) {
-            runningTasks.addLast(uploadTask);
+        if (tryAcquireSlot()) {
+            runningTasks.offer(uploadTask);
             callBack.onStart(name, UploadTask.UploadStatus.STATUS_UPLOADING);
             uploadTask.init();
         } else {
             callBack.onStart(name, UploadTask.UploadStatus.STATUS_WAITING);
-            readyTasks.addLast(uploadTask);
+            readyTasks.offer(uploadTask);
+            //入队期间可能有任务结束释放了名额，重新检查一次，避免任务一直等待
+            promoteReadyTasks();
         }
     }
 
@@ -120,12 +143,41 @@ public class UploadDispatcher {
      * @param uploadTask 上传任务
      */
     void recyclerTask(UploadTask uploadTask) {
-        runningTasks.remove(uploadTask);
-        //从readyTask中取出一个任务加入到runningTask队列中，并开始任务
-        UploadTask task = readyTasks.peekFirst();
-        if (task != null) {
-            readyTasks.remove(task);
-            runningTasks.addLast(task);
+        if (runningTasks.remove(uploadTask)) {
+            runningCount.decrementAndGet();
+        }
+        promoteReadyTasks();
+    }
+
+    /**
+     * 占用一个正在上传的名额
+     *
+     * @return false 名额已满
+     */
+    private boolean tryAcquireSlot() {
+        while (true) {
+            int count = runningCount.get();
+            if (count >= maxTaskSize) {
+                return false;
+            }
+            if (runningCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 有空闲名额时从readyTask中取出任务加入到runningTask队列中，并开始任务
+     */
+    private void promoteReadyTasks() {
+        while (!readyTasks.isEmpty() && tryAcquireSlot()) {
+            UploadTask task = readyTasks.poll();
+            if (task == null) {
+                //任务被其它线程取走了，归还名额
+                runningCount.decrementAndGet();
+                continue;
+            }
+            runningTasks.offer(task);
             task.init();
         }
     }
@@ -136,6 +188,7 @@ public class UploadDispatcher {
      * @param url
      */
     public void stopUpload(String url) {
+        stopTasks(runningTasks, url);
         stopTasks(readyTasks, url);
     }
 
@@ -143,11 +196,12 @@ public class UploadDispatcher {
      * 暂停所有的上传
      */
     public void stopAll() {
+        stopTasks(runningTasks, null);
         stopTasks(readyTasks, null);
     }
 
     /**
-     * 暂停上传
+     * 暂停上传，正在上传的任务会取消进行中的请求，回调onPause后由recyclerTask释放名额
      *
      * @param tasks
      * @param url
@@ -170,35 +224,40 @@ public class UploadDispatcher {
      * @param tag
      */
     public void cancel(Object tag) {
-        cancelTasks(runningTasks, tag);
-        cancelTasks(readyTasks, tag);
+        cancelTasks(runningTasks, tag, false);
+        cancelTasks(readyTasks, tag, true);
     }
 
     /**
      * 取消所有的上传，包括正在上传和准备上传
      */
     public void cancelAll() {
-        cancelTasks(runningTasks, null);
-        cancelTasks(readyTasks, null);
+        cancelTasks(runningTasks, null, false);
+        cancelTasks(readyTasks, null, true);
     }
 
     /**
      * 删除任务
      *
      * @param collections
+     * @param isRemove    是否从队列中移除，正在上传的任务停止后由recyclerTask移除并释放名额
      */
-    private void cancelTasks(Collection<UploadTask> collections, Object tag) {
+    private void cancelTasks(Collection<UploadTask> collections, Object tag, boolean isRemove) {
         Iterator<UploadTask> it = collections.iterator();
         while (it.hasNext()) {
             UploadTask task = it.next();
             if (tag != null) {
                 if (task.getTag() != null && task.getTag().equals(tag)) {
                     task.stopUpload();
-                    it.remove();
+                    if (isRemove) {
+                        it.remove();
+                    }
                 }
             } else {
                 task.stopUpload();
-                it.remove();
+                if (isRemove) {
+                    it.remove();
+                }
             }
         }
     }
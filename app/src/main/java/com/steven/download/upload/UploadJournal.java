@@ -0,0 +1,168 @@
+package com.steven.download.upload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 分片上传日志，记录服务器已经确认的分片，重试时只上传缺少的分片。
+ * <p>
+ * 文件格式：48字节的文件头(magic、version、文件大小、修改时间、分片大小、uploadId)，后面每个分片一个字节，1 表示已确认。
+ * 确认分片只写一个字节，写到一半时进程被杀不会破坏其它分片的记录
+ */
+class UploadJournal implements Closeable {
+    private static final int MAGIC = 0x4D545546;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final byte PART_ACKED = 1;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mFileChannel;
+    /**
+     * 服务器用来拼接分片的上传id，同一个文件续传时保持不变
+     */
+    private String mUploadId;
+    /**
+     * 每个分片是否已经确认
+     */
+    private boolean[] mAckedParts;
+
+    /**
+     * 打开日志，文件不存在或者上传的文件已经改变时重新创建
+     *
+     * @param file       日志文件
+     * @param uploadFile 上传的文件
+     * @param partSize   分片大小
+     */
+    UploadJournal(File file, File uploadFile, long partSize) throws IOException {
+        this.mFile = file;
+        this.mRandomAccessFile = new RandomAccessFile(file, "rw");
+        this.mFileChannel = mRandomAccessFile.getChannel();
+        long length = uploadFile.length();
+        int partCount = (int) Math.max(1, (length + partSize - 1) / partSize);
+        this.mAckedParts = new boolean[partCount];
+        if (!load(length, uploadFile.lastModified(), partSize)) {
+            reset(length, uploadFile.lastModified(), partSize);
+        }
+    }
+
+    /**
+     * 一次读出整个日志
+     *
+     * @return false 日志不存在或者和上传的文件不匹配
+     */
+    private boolean load(long length, long lastModified, long partSize) throws IOException {
+        long size = mFileChannel.size();
+        if (size != HEADER_SIZE + mAckedParts.length) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (mFileChannel.read(buffer, buffer.position()) == -1) {
+                return false;
+            }
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != length
+                || buffer.getLong() != lastModified || buffer.getLong() != partSize) {
+            return false;
+        }
+        mUploadId = new UUID(buffer.getLong(), buffer.getLong()).toString();
+        for (int i = 0; i < mAckedParts.length; i++) {
+            mAckedParts[i] = buffer.get() == PART_ACKED;
+        }
+        return true;
+    }
+
+    /**
+     * 清空日志，生成新的uploadId
+     */
+    private void reset(long length, long lastModified, long partSize) throws IOException {
+        UUID uuid = UUID.randomUUID();
+        mUploadId = uuid.toString();
+        mFileChannel.truncate(0);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mAckedParts.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(length).putLong(lastModified).putLong(partSize)
+                .putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        buffer.clear();
+        write(buffer, 0);
+        mFileChannel.force(false);
+    }
+
+    /**
+     * 服务器用来拼接分片的上传id
+     */
+    String getUploadId() {
+        return mUploadId;
+    }
+
+    /**
+     * 分片个数
+     */
+    int getPartCount() {
+        return mAckedParts.length;
+    }
+
+    /**
+     * 还没有确认的分片
+     */
+    synchronized List<Integer> getMissingParts() {
+        List<Integer> parts = new ArrayList<>();
+        for (int i = 0; i < mAckedParts.length; i++) {
+            if (!mAckedParts[i]) {
+                parts.add(i);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * 服务器已经确认的分片
+     */
+    synchronized boolean isAcked(int index) {
+        return mAckedParts[index];
+    }
+
+    /**
+     * 记录服务器已经确认的分片
+     */
+    synchronized void ack(int index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        buffer.put(PART_ACKED);
+        buffer.flip();
+        write(buffer, HEADER_SIZE + index);
+        mAckedParts[index] = true;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mFileChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 上传完成，删除日志
+     */
+    synchronized void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (mFile.exists()) {
+            mFile.delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mFileChannel.close();
+        mRandomAccessFile.close();
+    }
+}
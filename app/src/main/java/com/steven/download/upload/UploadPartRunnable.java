@@ -0,0 +1,199 @@
+package com.steven.download.upload;
+
+
+import android.support.annotation.NonNull;
+
+import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.BandwidthLimiter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * 分片上传线程，从任务中领取分片上传，直到所有分片都已上传
+ */
+class UploadPartRunnable implements Runnable {
+    /**
+     * 每次读取文件的buffer大小
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * 所属的上传任务
+     */
+    private UploadTask mTask;
+    /**
+     * 上传的文件
+     */
+    private File mFile;
+    /**
+     * 文件上传的url
+     */
+    private String url;
+    /**
+     * 终端Id
+     */
+    private String clientId;
+    /**
+     * 分片大小
+     */
+    private long mPartSize;
+    /**
+     * 分片上传日志
+     */
+    private UploadJournal mJournal;
+    /**
+     * 任务的带宽份额
+     */
+    private BandwidthLimiter.Share mBandwidthShare;
+    /**
+     * 上传回调
+     */
+    private UploadCallback mUploadCallback;
+
+    UploadPartRunnable(UploadTask task, File file, String url, String clientId, long partSize, UploadJournal journal,
+                       BandwidthLimiter.Share bandwidthShare, UploadCallback uploadCallback) {
+        this.mTask = task;
+        this.mFile = file;
+        this.url = url;
+        this.clientId = clientId;
+        this.mPartSize = partSize;
+        this.mJournal = journal;
+        this.mBandwidthShare = bandwidthShare;
+        this.mUploadCallback = uploadCallback;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int index;
+            while ((index = mTask.nextPart()) >= 0) {
+                uploadPart(index);
+                //服务器确认后才记录，重试时只上传没有确认的分片
+                mJournal.ack(index);
+            }
+            if (mTask.isStopped()) {
+                mUploadCallback.onPause(mFile);
+            } else {
+                mUploadCallback.onSuccess(mFile);
+            }
+        } catch (IOException e) {
+            //暂停时请求被取消，不算失败
+            if (mTask.isStopped()) {
+                mUploadCallback.onPause(mFile);
+            } else {
+                mUploadCallback.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * 上传一个分片，服务器根据uploadId和partIndex拼接文件
+     *
+     * @param index 分片序号
+     * @throws IOException io异常或者服务器拒绝
+     */
+    private void uploadPart(int index) throws IOException {
+        long offset = index * mPartSize;
+        long length = Math.min(mPartSize, mFile.length() - offset);
+        MultipartBody requestBody = new MultipartBody
+                .Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("uploadId", mJournal.getUploadId())
+                .addFormDataPart("partIndex", String.valueOf(index))
+                .addFormDataPart("partCount", String.valueOf(mJournal.getPartCount()))
+                .addFormDataPart("offset", String.valueOf(offset))
+                .addFormDataPart("totalLength", String.valueOf(mFile.length()))
+                .addPart(Headers.of("Content-Disposition", "form-data; name=\"mFile\"; filename=\"" + mFile.getName() + "\""),
+                        new PartRequestBody(offset, length))
+                .build();
+        Call call = OkHttpManager.getInstance().postCall(url, clientId, requestBody);
+        if (!mTask.addCall(call)) {
+            throw new InterruptedIOException("upload stopped");
+        }
+        Response response = null;
+        try {
+            response = call.execute();
+            if (!response.isSuccessful()) {
+                throw new IOException("part " + index + " rejected, code " + response.code());
+            }
+        } finally {
+            mTask.removeCall(call);
+            close(response);
+        }
+    }
+
+    /**
+     * 关闭流
+     */
+    private void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 文件中的一个分片，边读边写并回调进度
+     */
+    private class PartRequestBody extends RequestBody {
+        private long mOffset;
+        private long mLength;
+
+        PartRequestBody(long offset, long length) {
+            this.mOffset = offset;
+            this.mLength = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return MediaType.parse("application/octet-stream");
+        }
+
+        @Override
+        public long contentLength() {
+            return mLength;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(mFile, "r");
+                randomAccessFile.seek(mOffset);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = mLength;
+                while (remaining > 0) {
+                    //暂停时不再写入，请求随后被取消
+                    if (mTask.isStopped()) {
+                        throw new InterruptedIOException("upload stopped");
+                    }
+                    int length = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (length == -1) {
+                        throw new IOException("file changed while uploading, part offset " + mOffset);
+                    }
+                    //全局限速，令牌不足时阻塞
+                    mBandwidthShare.acquire(length);
+                    sink.write(buffer, 0, length);
+                    remaining -= length;
+                    mUploadCallback.onProgress(length, mFile.length());
+                }
+            } finally {
+                close(randomAccessFile);
+            }
+        }
+    }
+}
@@ -4,12 +4,15 @@ package com.steven.download.upload;
 import android.support.annotation.NonNull;
 
 import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.BandwidthLimiter;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
@@ -24,6 +27,10 @@ import okio.Okio;
  * 上传线程
  */
 class UploadRunnable implements Runnable {
+    /**
+     * 所属的上传任务，写入时检查任务是否已停止
+     */
+    private UploadTask mTask;
     /**
      * 文件上传的url
      */
@@ -44,8 +51,14 @@ class UploadRunnable implements Runnable {
      * 上传回调
      */
     private UploadCallback mUploadCallback;
+    /**
+     * 任务的带宽份额
+     */
+    private BandwidthLimiter.Share mBandwidthShare;
 
-    UploadRunnable(String folder, String name, String url, String clientId, UploadCallback uploadCallback) {
+    UploadRunnable(UploadTask task, String folder, String name, String url, String clientId, BandwidthLimiter.Share bandwidthShare, UploadCallback uploadCallback) {
+        this.mTask = task;
+        this.mBandwidthShare = bandwidthShare;
         this.folder = folder;
         this.name = name;
         this.url = url;
@@ -55,8 +68,10 @@ class UploadRunnable implements Runnable {
 
     @Override
     public void run() {
+        File file = new File(folder, name);
+        Response response = null;
+        Call call = null;
         try {
-            File file = new File(folder, name);
             RequestBody fileBody = RequestBody
                     .create(MediaType.parse("application/octet-stream"), file);
             MultipartBody requestBody = new MultipartBody
@@ -64,13 +79,30 @@ class UploadRunnable implements Runnable {
                     .setType(MultipartBody.FORM)
                     .addPart(Headers.of("Content-Disposition", "form-data; name=\"mFile\"; filename=\"" + name + "\""), fileBody)
                     .build();
-            Response response = OkHttpManager.getInstance().syncPostResponse(url, clientId, new ProgressRequestBody(requestBody, file, mUploadCallback));
-            if (!response.isSuccessful()) {
+            call = OkHttpManager.getInstance().postCall(url, clientId, new ProgressRequestBody(requestBody, file, mUploadCallback));
+            if (!mTask.addCall(call)) {
+                throw new InterruptedIOException("upload stopped");
+            }
+            response = call.execute();
+            //服务器响应后才算上传成功
+            if (response.isSuccessful()) {
+                mUploadCallback.onSuccess(file);
+            } else {
                 String responseContent = (response.body() == null ? "" : response.body().string());
                 mUploadCallback.onFailure(new Exception(responseContent));
             }
         } catch (IOException e) {
-            mUploadCallback.onFailure(e);
+            //暂停时请求被取消，不算失败
+            if (mTask.isStopped()) {
+                mUploadCallback.onPause(file);
+            } else {
+                mUploadCallback.onFailure(e);
+            }
+        } finally {
+            if (call != null) {
+                mTask.removeCall(call);
+            }
+            close(response);
         }
     }
 
@@ -116,22 +148,25 @@ class UploadRunnable implements Runnable {
         }
 
         @Override
-        public void writeTo(@NonNull BufferedSink sink) {
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
             BufferedSink bufferedSink = null;
             try {
                 bufferedSink = Okio.buffer(new ForwardingSink(sink) {
                     @Override
                     public void write(@NonNull Buffer source, long byteCount) throws IOException {
+                        //暂停时不再写入，请求随后被取消
+                        if (mTask.isStopped()) {
+                            throw new InterruptedIOException("upload stopped");
+                        }
+                        //全局限速，令牌不足时阻塞
+                        mBandwidthShare.acquire(byteCount);
                         super.write(source, byteCount);
                         mUploadCallback.onProgress(byteCount, contentLength());
                     }
                 });
-                bufferedSink.timeout().timeout(OkHttpManager.getInstance().getOkHttpClient().readTimeoutMillis(), TimeUnit.MILLISECONDS);
+                bufferedSink.timeout().timeout(OkHttpManager.getInstance().getUploadClient().writeTimeoutMillis(), TimeUnit.MILLISECONDS);
                 mRequestBody.writeTo(bufferedSink);
                 bufferedSink.flush();
-                mUploadCallback.onSuccess(mFile);
-            } catch (IOException e) {
-                mUploadCallback.onFailure(e);
             } finally {
                 close(bufferedSink);
                 close(sink);
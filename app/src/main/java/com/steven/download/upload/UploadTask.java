@@ -1,17 +1,35 @@
 package com.steven.download.upload;
 
+import com.steven.download.download.DownloadTask;
+import com.steven.download.transfer.BandwidthLimiter;
+import com.steven.download.transfer.TransferExecutor;
+
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import okhttp3.Call;
+
 /**
  * 上传任务
  */
 public class UploadTask {
+    /**
+     * 上传任务的带宽权重，和默认优先级的下载任务相同
+     */
+    private static final int BANDWIDTH_WEIGHT = DownloadTask.DownloadPriority.PRIORITY_NORMAL + 1;
     /**
      * 上传状态
      */
-    private int mStatus = UploadStatus.STATUS_UPLOADING;
+    private volatile int mStatus = UploadStatus.STATUS_UPLOADING;
     /**
      * 文件上传的url
      */
@@ -28,6 +46,30 @@ public class UploadTask {
      * 总进度=每个线程的进度的和
      */
     private long mTotalLength;
+    /**
+     * 分片大小，0 表示不分片
+     */
+    private long mPartSize;
+    /**
+     * 同时上传的最大分片数
+     */
+    private int mMaxPartThreadSize;
+    /**
+     * 分片上传日志
+     */
+    private UploadJournal mJournal;
+    /**
+     * 等待上传的分片
+     */
+    private Queue<Integer> mPendingParts = new ConcurrentLinkedQueue<>();
+    /**
+     * 正在上传的分片线程个数
+     */
+    private int mActiveNumber;
+    /**
+     * 正在进行的上传请求，暂停时取消
+     */
+    private Set<Call> mCalls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
     /**
      * 上传回调
      */
@@ -47,6 +89,8 @@ public class UploadTask {
         this.url = url;
         this.tag = tag;
         this.mCallback = callBack;
+        this.mPartSize = UploadDispatcher.getInstance().getPartSize();
+        this.mMaxPartThreadSize = UploadDispatcher.getInstance().getMaxPartThreadSize();
     }
 
     void init() {
@@ -56,14 +100,161 @@ public class UploadTask {
             UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
             return;
         }
-        initUploadRunnable();
+        File file = new File(folder, name);
+        if (mPartSize > 0 && file.length() > mPartSize) {
+            initPartRunnables(file);
+        } else {
+            initUploadRunnable();
+        }
+    }
+
+    /**
+     * 分片上传，从日志中找出服务器还没有确认的分片，多个线程并行上传
+     */
+    private void initPartRunnables(File file) {
+        try {
+            mJournal = new UploadJournal(new File(folder, "." + name + ".upload"), file, mPartSize);
+        } catch (IOException e) {
+            mCallback.onFailure(e);
+            UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
+            return;
+        }
+        mPendingParts.addAll(mJournal.getMissingParts());
+        //已经确认的分片计入进度
+        long ackedLength = 0;
+        for (int i = 0; i < mJournal.getPartCount(); i++) {
+            if (mJournal.isAcked(i)) {
+                ackedLength += Math.min(mPartSize, file.length() - i * mPartSize);
+            }
+        }
+        mTotalLength = ackedLength;
+        int threadSize = Math.max(1, Math.min(mMaxPartThreadSize, mPendingParts.size()));
+        synchronized (this) {
+            mActiveNumber = threadSize;
+        }
+        //所有分片线程共用一份带宽，全部结束时归还
+        final BandwidthLimiter.Share bandwidthShare = BandwidthLimiter.getInstance().register(BANDWIDTH_WEIGHT);
+        String clientId = UUID.randomUUID().toString();
+        UploadCallback partCallback = new UploadCallback() {
+
+            @Override
+            public void onStart(String fileName, int status) {
+
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                //有一个分片失败，停止其它分片，已确认的分片下次不再上传
+                stopUpload();
+                finishPartRunnable(bandwidthShare);
+                if (!atomicIsStoped.getAndSet(true)) {
+                    mCallback.onFailure(e);
+                    UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
+                }
+            }
+
+            @Override
+            public void onSuccess(File file) {
+                if (!finishPartRunnable(bandwidthShare) || atomicIsStoped.getAndSet(true)) {
+                    return;
+                }
+                if (!mJournal.getMissingParts().isEmpty()) {
+                    close(mJournal);
+                    mCallback.onFailure(new IOException("upload finished with missing parts " + mJournal.getMissingParts()));
+                } else {
+                    //上传完成，删除分片日志
+                    mJournal.delete();
+                    mCallback.onSuccess(file);
+                }
+                UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
+            }
+
+            @Override
+            public void onProgress(long currentLength, long totalLength) {
+                synchronized (UploadTask.this) {
+                    mCallback.onProgress(mTotalLength += currentLength, totalLength);
+                }
+            }
+
+            @Override
+            public void onPause(File file) {
+                finishPartRunnable(bandwidthShare);
+                if (!atomicIsStoped.getAndSet(true)) {
+                    mCallback.onPause(file);
+                    UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
+                }
+            }
+        };
+        for (int i = 0; i < threadSize; i++) {
+            try {
+                TransferExecutor.getInstance().execute(new UploadPartRunnable(UploadTask.this, file, url, clientId,
+                        mPartSize, mJournal, bandwidthShare, partCallback));
+            } catch (RejectedExecutionException e) {
+                //等待队列已满，已经开始的分片线程会随任务停止
+                partCallback.onFailure(new IOException("transfer executor rejected", e));
+            }
+        }
+    }
+
+    /**
+     * 领取下一个要上传的分片
+     *
+     * @return 分片序号，-1 表示没有分片或者任务已停止
+     */
+    int nextPart() {
+        if (mStatus == UploadStatus.STATUS_STOP) {
+            return -1;
+        }
+        Integer index = mPendingParts.poll();
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 任务是否已停止
+     */
+    boolean isStopped() {
+        return mStatus == UploadStatus.STATUS_STOP;
+    }
+
+    /**
+     * 分片线程结束，最后一个线程结束时归还带宽份额
+     *
+     * @return true 所有分片线程都已结束
+     */
+    private boolean finishPartRunnable(BandwidthLimiter.Share bandwidthShare) {
+        synchronized (this) {
+            if (--mActiveNumber > 0) {
+                return false;
+            }
+        }
+        bandwidthShare.release();
+        if (mStatus == UploadStatus.STATUS_STOP) {
+            //下次从日志继续上传
+            close(mJournal);
+        }
+        return true;
+    }
+
+    /**
+     * 关闭流
+     */
+    private void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
      * 初始化上传线程
      */
     private void initUploadRunnable() {
-        UploadRunnable uploadRunnable = new UploadRunnable(folder, name, url, UUID.randomUUID().toString(), new UploadCallback() {
+        //和下载任务共用全局带宽限制，上传结束时归还份额
+        final BandwidthLimiter.Share bandwidthShare = BandwidthLimiter.getInstance().register(BANDWIDTH_WEIGHT);
+        UploadCallback uploadCallback = new UploadCallback() {
 
             @Override
             public void onStart(String fileName, int status) {
@@ -73,6 +264,7 @@ public class UploadTask {
             @Override
             public void onFailure(Exception e) {
                 //有一个线程发生异常，上传失败，需要把其它线程停止掉
+                bandwidthShare.release();
                 if (!atomicIsStoped.get()) {
                     atomicIsStoped.set(true);
                     mCallback.onFailure(e);
@@ -84,6 +276,7 @@ public class UploadTask {
 
             @Override
             public void onSuccess(File file) {
+                bandwidthShare.release();
                 mCallback.onSuccess(file);
                 //上传成功回收任务，继续上传后面等待的任务
                 UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
@@ -100,21 +293,55 @@ public class UploadTask {
 
             @Override
             public void onPause(File file) {
+                bandwidthShare.release();
                 if (!atomicIsStoped.get()) {
                     atomicIsStoped.set(true);
                     mCallback.onPause(file);
+                    //暂停回收任务，释放名额
+                    UploadDispatcher.getInstance().recyclerTask(UploadTask.this);
                 }
             }
-        });
-        //通过线程池去执行
-        UploadDispatcher.getInstance().executorService().execute(uploadRunnable);
+        };
+        UploadRunnable uploadRunnable = new UploadRunnable(UploadTask.this, folder, name, url, UUID.randomUUID().toString(), bandwidthShare, uploadCallback);
+        try {
+            //通过共用的线程池去执行
+            TransferExecutor.getInstance().execute(uploadRunnable);
+        } catch (RejectedExecutionException e) {
+            uploadCallback.onFailure(new IOException("transfer executor rejected", e));
+        }
+    }
+
+    /**
+     * 记录正在进行的上传请求
+     *
+     * @return false 任务已停止，请求已被取消
+     */
+    boolean addCall(Call call) {
+        mCalls.add(call);
+        //停止和加入同时发生时，由加入的一方取消
+        if (mStatus == UploadStatus.STATUS_STOP) {
+            call.cancel();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 上传请求结束
+     */
+    void removeCall(Call call) {
+        mCalls.remove(call);
     }
 
     /**
-     * 停止上传 上传线程只有一个，停止任务即停止上传
+     * 停止上传，上传线程在写入下一块数据前检查状态，同时取消正在进行的请求，立即释放连接和线程。
+     * 分片上传时已确认的分片记录在日志中，继续上传时只上传缺少的分片；整个文件上传时只能从头开始
      */
     public void stopUpload() {
         mStatus = UploadStatus.STATUS_STOP;
+        for (Call call : mCalls) {
+            call.cancel();
+        }
     }
 
     /**
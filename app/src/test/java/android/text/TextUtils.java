@@ -0,0 +1,11 @@
+package android.text;
+
+/**
+ * 本地单元测试时代替android.jar中只会抛出异常的TextUtils，测试代码在android.jar之前加载。只实现下载代码用到的方法
+ */
+public class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
@@ -0,0 +1,91 @@
+package com.steven.download.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 测试中等待下载结束的回调，记录结果和进度
+ */
+class AwaitDownloadCallback implements DownloadCallback {
+    static final String PAUSED = "paused";
+    private static final long TIMEOUT_SECONDS = 60;
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    /**
+     * 成功时是文件，失败时是异常，暂停时是PAUSED
+     */
+    private volatile Object mResult;
+    private volatile long mCurrentLength;
+
+    @Override
+    public void onStart(String fileName, int status) {
+
+    }
+
+    @Override
+    public void onProgress(long currentLength, long totalLength) {
+        mCurrentLength = currentLength;
+    }
+
+    @Override
+    public void onSuccess(File file) {
+        finish(file);
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+        finish(e);
+    }
+
+    @Override
+    public void onPause(File file) {
+        finish(PAUSED);
+    }
+
+    private void finish(Object result) {
+        if (mLatch.getCount() > 0) {
+            mResult = result;
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * 等待下载结束
+     *
+     * @return 成功时是文件，失败时是异常，暂停时是PAUSED
+     */
+    Object await() throws InterruptedException {
+        assertTrue("download timeout", mLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return mResult;
+    }
+
+    /**
+     * 等待进度达到指定长度
+     */
+    void awaitProgress(long length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (mCurrentLength < length) {
+            if (mLatch.getCount() == 0) {
+                fail("download finished before " + length + " bytes, result " + mResult);
+            }
+            assertTrue("progress timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        try {
+            return source.readByteArray();
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.steven.download.download;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 断点日志：每个槽位两份带CRC的记录，序号大的有效，写坏一份时用另一份
+ */
+public class DownloadJournalTest {
+    private static final long CONTENT_LENGTH = 1000;
+    private static final int HEADER_SIZE = 256;
+    private static final int RECORD_SIZE = 32;
+    private static final int SLOT_SIZE = RECORD_SIZE * 2;
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(mFolder.getRoot(), ".test.bin.journal");
+    }
+
+    @Test
+    public void newerRecordWins() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertTrue(journal.isNew());
+        int first = journal.newSlot(0, 499);
+        int second = journal.newSlot(500, 999);
+        //第一个槽位记录三次，两份记录都完整，序号大的是最后一次
+        journal.record(first, 100, 499);
+        journal.record(first, 200, 499);
+        journal.record(second, 600, 999);
+        journal.close();
+
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertFalse(journal.isNew());
+        assertRanges(journal.getRanges(), new long[]{200, 499, first}, new long[]{600, 999, second});
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordFallsBackToOtherCopy() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        int slot = journal.newSlot(0, 999);
+        //序号2写在第一份记录的位置
+        journal.record(slot, 300, 999);
+        journal.close();
+        corrupt(slot, 0);
+
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertFalse(journal.isNew());
+        assertRanges(journal.getRanges(), new long[]{0, 999, slot});
+        //继续记录时覆盖写坏的那一份
+        journal.record(slot, 400, 999);
+        journal.close();
+
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertRanges(journal.getRanges(), new long[]{400, 999, slot});
+        journal.close();
+    }
+
+    @Test
+    public void bothCopiesCorruptedResetsJournal() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        int slot = journal.newSlot(0, 999);
+        journal.record(slot, 300, 999);
+        journal.close();
+        corrupt(slot, 0);
+        corrupt(slot, 1);
+
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertTrue(journal.isNew());
+        assertTrue(journal.getRanges().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void freedSlotIsReused() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        int first = journal.newSlot(0, 499);
+        int second = journal.newSlot(500, 999);
+        journal.free(first);
+        assertRanges(journal.getRanges(), new long[]{500, 999, second});
+        assertEquals(first, journal.newSlot(200, 299));
+        journal.close();
+
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertRanges(journal.getRanges(), new long[]{200, 299, first}, new long[]{500, 999, second});
+        journal.close();
+    }
+
+    @Test
+    public void emptyJournalIsNew() throws Exception {
+        //只写了文件头，还没记录区间时进程被杀
+        new DownloadJournal(mFile, CONTENT_LENGTH, null).close();
+        assertEquals(HEADER_SIZE, mFile.length());
+
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertTrue(journal.isNew());
+        journal.close();
+    }
+
+    @Test
+    public void contentLengthMismatchResetsJournal() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        journal.newSlot(0, 999);
+        journal.close();
+
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH * 2, null);
+        assertTrue(journal.isNew());
+        assertTrue(journal.getRanges().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void validatorMismatchResetsJournal() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFile, CONTENT_LENGTH, "\"v1\"");
+        journal.newSlot(0, 999);
+        journal.close();
+
+        //这次没有拿到校验值时沿用日志中的，仍然可以续传
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, null);
+        assertFalse(journal.isNew());
+        assertEquals("\"v1\"", journal.getValidator());
+        journal.close();
+
+        //远程文件已经改变，不能拼接两个版本
+        journal = new DownloadJournal(mFile, CONTENT_LENGTH, "\"v2\"");
+        assertTrue(journal.isNew());
+        assertTrue(journal.getRanges().isEmpty());
+        assertEquals("\"v2\"", journal.getValidator());
+        journal.close();
+    }
+
+    /**
+     * 改写槽位中一份记录的start，CRC不再匹配
+     *
+     * @param copy 0 或 1
+     */
+    private void corrupt(int slot, int copy) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long position = HEADER_SIZE + (long) slot * SLOT_SIZE + copy * RECORD_SIZE + 8;
+            file.seek(position);
+            long start = file.readLong();
+            file.seek(position);
+            file.writeLong(start + 1);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void assertRanges(List<long[]> ranges, long[]... expected) {
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.steven.download.download;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 区间失败后的重试等待：指数增长、有上限，随机取一半到全部
+ */
+public class DownloadTaskTest {
+    private static final String URL = "http://localhost/retry.bin";
+    private static final int SAMPLES = 1000;
+
+    @After
+    public void tearDown() {
+        //恢复默认的重试策略
+        DownloadDispatcher.getInstance().setRetryPolicy(3, 500, 10000);
+    }
+
+    @Test
+    public void retryDelayGrowsWithJitter() {
+        DownloadDispatcher.getInstance().setRetryPolicy(5, 500, 4000);
+        DownloadTask task = newTask();
+        long[] bases = {500, 1000, 2000, 4000, 4000};
+        for (int i = 0; i < bases.length; i++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int j = 0; j < SAMPLES; j++) {
+                long delay = task.getRetryDelay(i + 1);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            long base = bases[i];
+            //在一半到全部之间，并且确实是随机的
+            assertTrue("failure " + (i + 1) + " min " + min, min >= base / 2 && min < base * 6 / 10);
+            assertTrue("failure " + (i + 1) + " max " + max, max <= base && max > base * 9 / 10);
+        }
+    }
+
+    @Test
+    public void retryCountExhausted() {
+        DownloadDispatcher.getInstance().setRetryPolicy(2, 500, 10000);
+        DownloadTask task = newTask();
+        assertTrue(task.getRetryDelay(2) >= 0);
+        assertEquals(-1, task.getRetryDelay(3));
+    }
+
+    @Test
+    public void noRetry() {
+        DownloadDispatcher.getInstance().setRetryPolicy(0, 500, 10000);
+        assertEquals(-1, newTask().getRetryDelay(1));
+    }
+
+    @Test
+    public void largeCountCapped() {
+        DownloadDispatcher.getInstance().setRetryPolicy(10, 500, 10000);
+        DownloadTask task = newTask();
+        for (int j = 0; j < SAMPLES; j++) {
+            long delay = task.getRetryDelay(10);
+            assertTrue("delay " + delay, delay >= 5000 && delay <= 10000);
+        }
+    }
+
+    private static DownloadTask newTask() {
+        //HEAD探测的结果：1000字节，支持Range
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url(URL).head().build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("Content-Length", "1000")
+                .header("Accept-Ranges", "bytes")
+                .build();
+        return new DownloadTask(null, "retry.bin", Collections.singletonList(URL), RemoteFile.parse(response),
+                null, null, new AwaitDownloadCallback());
+    }
+}
@@ -0,0 +1,77 @@
+package com.steven.download.download;
+
+import com.steven.download.okhttp.OkHttpManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HTTP/2服务器上所有区间作为流复用同一个连接
+ */
+public class Http2DownloadTest {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    /**
+     * 只有这个测试使用IP地址访问，其它测试的localhost仍然使用HTTP/1.1
+     */
+    private static final String HOST = "127.0.0.1";
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private MockWebServer mServer;
+    private RangeFileDispatcher mDispatcher;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = RangeFileDispatcher.randomData(FILE_SIZE, 3);
+        mDispatcher = new RangeFileDispatcher(mData).setThrottle(4 * 1024 * 1024);
+        mServer = new MockWebServer();
+        mServer.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        mServer.setDispatcher(mDispatcher);
+        mServer.start(InetAddress.getByName(HOST), 0);
+        OkHttpManager.addHttp2PriorKnowledgeHost(HOST);
+        DownloadDispatcher.getInstance().setEngine(DownloadDispatcher.DownloadEngine.ENGINE_THREAD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void segmentsShareOneConnection() throws Exception {
+        String folder = mFolder.getRoot().getAbsolutePath();
+        String url = mServer.url("/h2.bin").newBuilder().host(HOST).build().toString();
+        AwaitDownloadCallback callback = new AwaitDownloadCallback();
+        DownloadDispatcher.getInstance().startDownload(folder, "h2.bin", url, callback);
+        File file = new File(folder, "h2.bin");
+        assertEquals(file, callback.await());
+        assertArrayEquals(mData, AwaitDownloadCallback.readFile(file));
+
+        List<RecordedRequest> requests = mDispatcher.getRequests("GET");
+        assertTrue("ranges " + requests.size(), requests.size() > 1);
+        //每个连接上的第一个请求序号为0，只有一个连接
+        int connectionCount = 0;
+        for (RecordedRequest request : requests) {
+            if (request.getSequenceNumber() == 0) {
+                connectionCount++;
+            }
+        }
+        assertEquals(1, connectionCount);
+    }
+}
@@ -0,0 +1,134 @@
+package com.steven.download.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 从多个服务器下载：同一个文件的多个镜像，以及批量下载中支持和不支持Range的服务器混在一起
+ */
+public class MirrorDownloadTest {
+    private static final int FILE_SIZE = 3 * 1024 * 1024;
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private MockWebServer mRangeServer;
+    private MockWebServer mPlainServer;
+    private RangeFileDispatcher mRangeDispatcher;
+    private RangeFileDispatcher mPlainDispatcher;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = RangeFileDispatcher.randomData(FILE_SIZE, 2);
+        mRangeDispatcher = new RangeFileDispatcher(mData).setThrottle(4 * 1024 * 1024);
+        mPlainDispatcher = new RangeFileDispatcher(mData).setThrottle(4 * 1024 * 1024).setRangeSupported(false);
+        mRangeServer = new MockWebServer();
+        mRangeServer.setDispatcher(mRangeDispatcher);
+        mRangeServer.start();
+        mPlainServer = new MockWebServer();
+        mPlainServer.setDispatcher(mPlainDispatcher);
+        mPlainServer.start();
+        DownloadDispatcher.getInstance().setEngine(DownloadDispatcher.DownloadEngine.ENGINE_THREAD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRangeServer.shutdown();
+        mPlainServer.shutdown();
+    }
+
+    @Test
+    public void rangesSpreadAcrossMirrors() throws Exception {
+        String folder = mFolder.getRoot().getAbsolutePath();
+        //两个服务器都支持Range，作为同一个文件的镜像
+        mPlainDispatcher.setRangeSupported(true);
+        List<String> urls = Arrays.asList(mRangeServer.url("/mirror.bin").toString(), mPlainServer.url("/mirror.bin").toString());
+        AwaitDownloadCallback callback = new AwaitDownloadCallback();
+        DownloadDispatcher.getInstance().startDownload(folder, "mirror.bin", urls, null,
+                DownloadTask.DownloadPriority.PRIORITY_NORMAL, null, callback);
+        File file = new File(folder, "mirror.bin");
+        assertEquals(file, callback.await());
+        assertArrayEquals(mData, AwaitDownloadCallback.readFile(file));
+        //每个镜像至少分到一个区间
+        assertTrue(mRangeDispatcher.getRequests("GET").size() >= 1);
+        assertTrue(mPlainDispatcher.getRequests("GET").size() >= 1);
+    }
+
+    @Test
+    public void batchMixesRangeAndPlainHosts() throws Exception {
+        String folder = mFolder.getRoot().getAbsolutePath();
+        DownloadBatch batch = new DownloadBatch()
+                .add(folder, "range-a.bin", mRangeServer.url("/a.bin").toString())
+                .add(folder, "range-b.bin", mRangeServer.url("/b.bin").toString())
+                .add(folder, "plain-a.bin", mPlainServer.url("/a.bin").toString())
+                .add(folder, "plain-b.bin", mPlainServer.url("/b.bin").toString());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger successCount = new AtomicInteger();
+        final AtomicInteger failureCount = new AtomicInteger();
+        final Exception[] failure = new Exception[1];
+        DownloadDispatcher.getInstance().startBatch(batch, DownloadTask.DownloadPriority.PRIORITY_NORMAL, new BatchCallback() {
+            @Override
+            public void onProgress(long currentLength, long totalLength) {
+
+            }
+
+            @Override
+            public void onItemSuccess(File file) {
+
+            }
+
+            @Override
+            public void onItemFailure(String url, Exception e) {
+                failure[0] = e;
+            }
+
+            @Override
+            public void onFinish(int success, int failure) {
+                successCount.set(success);
+                failureCount.set(failure);
+                latch.countDown();
+            }
+        });
+        assertTrue("batch timeout", latch.await(60, TimeUnit.SECONDS));
+        assertNull(failure[0]);
+        assertEquals(4, successCount.get());
+        assertEquals(0, failureCount.get());
+        for (String name : Arrays.asList("range-a.bin", "range-b.bin", "plain-a.bin", "plain-b.bin")) {
+            assertArrayEquals(name, mData, AwaitDownloadCallback.readFile(new File(folder, name)));
+        }
+        //每个文件一个HEAD探测请求
+        assertEquals(2, mRangeDispatcher.getRequests("HEAD").size());
+        assertEquals(2, mPlainDispatcher.getRequests("HEAD").size());
+        //支持Range的服务器上每个文件分成多个区间
+        for (String path : Arrays.asList("/a.bin", "/b.bin")) {
+            int rangeCount = 0;
+            for (RecordedRequest request : mRangeDispatcher.getRequests("GET")) {
+                if (request.getPath().equals(path)) {
+                    assertNotNull(request.getHeader("Range"));
+                    rangeCount++;
+                }
+            }
+            assertTrue(path + " ranges " + rangeCount, rangeCount >= 2);
+        }
+        //不支持Range的服务器上每个文件只用一个连接从头下载
+        assertEquals(2, mPlainDispatcher.getRequests("GET").size());
+    }
+}
@@ -0,0 +1,169 @@
+package com.steven.download.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 非阻塞引擎暂停后续传、不合法的响应头重试，以及交给线程池的重定向和分块传输响应
+ */
+public class NioDownloadEngineTest {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private MockWebServer mServer;
+    private RangeFileDispatcher mDispatcher;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = RangeFileDispatcher.randomData(FILE_SIZE, 1);
+        mDispatcher = new RangeFileDispatcher(mData).setThrottle(2 * 1024 * 1024);
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mDispatcher);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DownloadDispatcher.getInstance().setEngine(DownloadDispatcher.DownloadEngine.ENGINE_THREAD);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void resumeFromJournal() throws Exception {
+        DownloadDispatcher dispatcher = DownloadDispatcher.getInstance().setEngine(DownloadDispatcher.DownloadEngine.ENGINE_NIO);
+        String folder = mFolder.getRoot().getAbsolutePath();
+        String url = mServer.url("/nio.bin").toString();
+        AwaitDownloadCallback first = new AwaitDownloadCallback();
+        dispatcher.startDownload(folder, "nio.bin", url, first);
+        first.awaitProgress(FILE_SIZE / 3);
+        dispatcher.stopDownload(url);
+        assertEquals(AwaitDownloadCallback.PAUSED, first.await());
+        //暂停回调之后下载线程才记录最后的断点、关闭文件
+        Thread.sleep(500);
+        assertTrue(new File(folder, ".nio.bin.journal").exists());
+        int firstRequestCount = mDispatcher.getRequests("GET").size();
+
+        AwaitDownloadCallback second = new AwaitDownloadCallback();
+        dispatcher.startDownload(folder, "nio.bin", url, second);
+        File file = new File(folder, "nio.bin");
+        assertEquals(file, second.await());
+        assertArrayEquals(mData, AwaitDownloadCallback.readFile(file));
+        assertFalse(new File(folder, ".nio.bin.journal").exists());
+
+        //探测请求之外的区间请求都从断点开始，并且校验远程文件没有改变
+        List<RecordedRequest> requests = mDispatcher.getRequests("GET");
+        int rangeCount = 0;
+        for (RecordedRequest request : requests.subList(firstRequestCount, requests.size())) {
+            String range = request.getHeader("Range");
+            if (range.equals("bytes=0-")) {
+                continue;
+            }
+            rangeCount++;
+            assertFalse(range, range.startsWith("bytes=0-"));
+            assertEquals(RangeFileDispatcher.ETAG, request.getHeader("If-Range"));
+        }
+        assertTrue(rangeCount > 0);
+    }
+
+    @Test
+    public void malformedHeadersRetried() throws Exception {
+        final AtomicBoolean isStatusBroken = new AtomicBoolean();
+        final AtomicBoolean isLengthBroken = new AtomicBoolean();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                MockResponse response = mDispatcher.dispatch(request);
+                String range = request.getHeader("Range");
+                if (!request.getMethod().equals("GET") || range == null || range.equals("bytes=0-")) {
+                    return response;
+                }
+                //非阻塞引擎的前两个区间请求分别返回不合法的状态码和Content-Length
+                if (!isStatusBroken.getAndSet(true)) {
+                    return response.setStatus("HTTP/1.1 2x6 Partial Content");
+                }
+                if (!isLengthBroken.getAndSet(true)) {
+                    return response.setHeader("Content-Length", "invalid");
+                }
+                return response;
+            }
+        });
+        assertDownloaded("/malformed.bin");
+        assertTrue(isStatusBroken.get());
+        assertTrue(isLengthBroken.get());
+    }
+
+    @Test
+    public void redirectHandedToThreads() throws Exception {
+        final List<String> redirectedRanges = new CopyOnWriteArrayList<>();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().equals("/moved.bin")) {
+                    if (request.getHeader("Range") != null) {
+                        redirectedRanges.add(request.getHeader("Range"));
+                    }
+                    return new MockResponse().setResponseCode(302).setHeader("Location", "/nio.bin");
+                }
+                return mDispatcher.dispatch(request);
+            }
+        });
+        assertDownloaded("/moved.bin");
+        //非阻塞引擎的区间请求收到重定向，交给OkHttp跟随
+        boolean isRangeRedirected = false;
+        for (String range : redirectedRanges) {
+            isRangeRedirected |= !range.equals("bytes=0-");
+        }
+        assertTrue(redirectedRanges.toString(), isRangeRedirected);
+    }
+
+    @Test
+    public void chunkedHandedToThreads() throws Exception {
+        final List<String> chunkedRanges = new CopyOnWriteArrayList<>();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                MockResponse response = mDispatcher.dispatch(request);
+                String range = request.getHeader("Range");
+                if (request.getMethod().equals("GET") && range != null && !range.equals("bytes=0-")) {
+                    chunkedRanges.add(range);
+                    response.setChunkedBody(response.getBody(), 64 * 1024);
+                }
+                return response;
+            }
+        });
+        assertDownloaded("/chunked.bin");
+        assertTrue(chunkedRanges.size() > 0);
+    }
+
+    /**
+     * 用非阻塞引擎下载完整个文件
+     */
+    private void assertDownloaded(String path) throws Exception {
+        DownloadDispatcher dispatcher = DownloadDispatcher.getInstance().setEngine(DownloadDispatcher.DownloadEngine.ENGINE_NIO);
+        String folder = mFolder.getRoot().getAbsolutePath();
+        AwaitDownloadCallback callback = new AwaitDownloadCallback();
+        dispatcher.startDownload(folder, "nio.bin", mServer.url(path).toString(), callback);
+        File file = new File(folder, "nio.bin");
+        assertEquals(file, callback.await());
+        assertArrayEquals(mData, AwaitDownloadCallback.readFile(file));
+    }
+}
@@ -0,0 +1,106 @@
+package com.steven.download.download;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 进度汇总：时间间隔和进度步长都没到时合并，finish回调准确的最终进度
+ */
+public class ProgressAggregatorTest {
+    private static final long TOTAL_LENGTH = 1000;
+    /**
+     * 测试中不会到达的时间间隔
+     */
+    private static final long NEVER = 60 * 60 * 1000;
+
+    @Test
+    public void coalescedWithinInterval() {
+        ProgressRecorder recorder = new ProgressRecorder();
+        ProgressAggregator aggregator = new ProgressAggregator(0, TOTAL_LENGTH, NEVER, 1f, recorder);
+        //第一次写入总是回调
+        aggregator.add(10);
+        aggregator.add(10);
+        aggregator.add(10);
+        assertEquals(Arrays.asList(10L), recorder.mLengths);
+        aggregator.finish();
+        assertEquals(Arrays.asList(10L, 30L), recorder.mLengths);
+        //进度没有变化时不重复回调
+        aggregator.finish();
+        assertEquals(Arrays.asList(10L, 30L), recorder.mLengths);
+    }
+
+    @Test
+    public void notifiedAfterInterval() throws Exception {
+        ProgressRecorder recorder = new ProgressRecorder();
+        ProgressAggregator aggregator = new ProgressAggregator(0, TOTAL_LENGTH, 50, 1f, recorder);
+        aggregator.add(10);
+        aggregator.add(10);
+        Thread.sleep(100);
+        aggregator.add(10);
+        assertEquals(Arrays.asList(10L, 30L), recorder.mLengths);
+    }
+
+    @Test
+    public void notifiedAfterStep() {
+        ProgressRecorder recorder = new ProgressRecorder();
+        //步长是文件大小的10%
+        ProgressAggregator aggregator = new ProgressAggregator(0, TOTAL_LENGTH, NEVER, 0.1f, recorder);
+        aggregator.add(10);
+        for (int i = 0; i < 3; i++) {
+            aggregator.add(30);
+        }
+        assertEquals(Arrays.asList(10L), recorder.mLengths);
+        aggregator.add(30);
+        assertEquals(Arrays.asList(10L, 130L), recorder.mLengths);
+        assertEquals(130, aggregator.getCurrentLength());
+    }
+
+    @Test
+    public void resumeStartsFromCurrentLength() {
+        ProgressRecorder recorder = new ProgressRecorder();
+        ProgressAggregator aggregator = new ProgressAggregator(600, TOTAL_LENGTH, NEVER, 1f, recorder);
+        aggregator.add(400);
+        assertEquals(Arrays.asList(1000L), recorder.mLengths);
+        assertEquals(Arrays.asList(TOTAL_LENGTH), recorder.mTotalLengths);
+    }
+
+    /**
+     * 记录每次进度回调
+     */
+    private static class ProgressRecorder implements DownloadCallback {
+        private final List<Long> mLengths = new ArrayList<>();
+        private final List<Long> mTotalLengths = new ArrayList<>();
+
+        @Override
+        public void onStart(String fileName, int status) {
+
+        }
+
+        @Override
+        public void onProgress(long currentLength, long totalLength) {
+            mLengths.add(currentLength);
+            mTotalLengths.add(totalLength);
+        }
+
+        @Override
+        public void onSuccess(File file) {
+
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+
+        }
+
+        @Override
+        public void onPause(File file) {
+
+        }
+    }
+}
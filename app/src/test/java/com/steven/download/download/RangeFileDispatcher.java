@@ -0,0 +1,114 @@
+package com.steven.download.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * 测试用的文件服务器：所有路径返回同一个文件，支持Range和If-Range，可以关闭Range支持和限速，记录收到的请求
+ */
+class RangeFileDispatcher extends Dispatcher {
+    static final String ETAG = "\"test\"";
+    private final byte[] mData;
+    private final List<RecordedRequest> mRequests = new CopyOnWriteArrayList<>();
+    private volatile boolean isRangeSupported = true;
+    private volatile String mETag = ETAG;
+    /**
+     * 每100ms发送的响应体长度，0 表示不限速
+     */
+    private long mBytesPerPeriod;
+
+    RangeFileDispatcher(byte[] data) {
+        this.mData = data;
+    }
+
+    /**
+     * 固定种子的随机内容
+     */
+    static byte[] randomData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 不支持Range时忽略Range请求头，总是返回200和整个文件
+     */
+    RangeFileDispatcher setRangeSupported(boolean isRangeSupported) {
+        this.isRangeSupported = isRangeSupported;
+        return this;
+    }
+
+    /**
+     * 不同版本的文件使用不同的ETag，If-Range不匹配时返回整个文件
+     */
+    RangeFileDispatcher setETag(String eTag) {
+        this.mETag = eTag;
+        return this;
+    }
+
+    /**
+     * 限制每个响应的速度，让下载持续一段时间
+     *
+     * @param bytesPerSecond 每秒的字节数
+     */
+    RangeFileDispatcher setThrottle(long bytesPerSecond) {
+        this.mBytesPerPeriod = bytesPerSecond / 10;
+        return this;
+    }
+
+    /**
+     * 收到的指定方法的请求
+     */
+    List<RecordedRequest> getRequests(String method) {
+        List<RecordedRequest> requests = new ArrayList<>();
+        for (RecordedRequest request : mRequests) {
+            if (request.getMethod().equals(method)) {
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        mRequests.add(request);
+        MockResponse response = new MockResponse().setHeader("ETag", mETag);
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (!isRangeSupported || (ifRange != null && !ifRange.equals(mETag))) {
+            range = null;
+        }
+        long start = 0;
+        long end = mData.length - 1;
+        if (range != null) {
+            //Range: bytes=start-end 或者 bytes=start-
+            String[] values = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(values[0]);
+            if (values.length > 1 && !values[1].isEmpty()) {
+                end = Math.min(Long.parseLong(values[1]), mData.length - 1);
+            }
+            response.setResponseCode(206)
+                    .setHeader("Accept-Ranges", "bytes")
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + mData.length);
+        }
+        if (request.getMethod().equals("HEAD")) {
+            //HEAD只有响应头，不能写响应体
+            return response.setHeader("Content-Length", end - start + 1);
+        }
+        Buffer body = new Buffer();
+        body.write(mData, (int) start, (int) (end - start + 1));
+        response.setBody(body);
+        if (mBytesPerPeriod > 0) {
+            response.throttleBody(mBytesPerPeriod, 100, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+}
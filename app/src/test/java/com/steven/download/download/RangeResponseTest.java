@@ -0,0 +1,162 @@
+package com.steven.download.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 区间响应的校验：206 的开始位置不对时失败，服务器忽略Range时改为一个连接从头下载，文件改变时重新探测下载新文件
+ */
+public class RangeResponseTest {
+    private static final int FILE_SIZE = 3 * 1024 * 1024;
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private MockWebServer mServer;
+    private RangeDispatcher mDispatcher;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = RangeFileDispatcher.randomData(FILE_SIZE, 4);
+        mDispatcher = new RangeDispatcher(new RangeFileDispatcher(mData).setThrottle(4 * 1024 * 1024));
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mDispatcher);
+        mServer.start();
+        DownloadDispatcher.getInstance().setEngine(DownloadDispatcher.DownloadEngine.ENGINE_THREAD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        DownloadDispatcher.getInstance().setRetryPolicy(3, 500, 10000);
+    }
+
+    @Test
+    public void wrongRangeStartFails() throws Exception {
+        //开始位置不对是服务器的错误，重试也一样，不重试直接失败
+        DownloadDispatcher.getInstance().setRetryPolicy(0, 500, 10000);
+        mDispatcher.mMode = RangeDispatcher.MODE_WRONG_START;
+        Object result = download("wrong-start.bin");
+        assertTrue("result " + result, result instanceof IOException);
+        assertTrue(((IOException) result).getMessage(), ((IOException) result).getMessage().startsWith("unexpected Content-Range"));
+    }
+
+    @Test
+    public void ignoredRangeFallsBackToSingleStream() throws Exception {
+        //ETag没有变，服务器只是不再处理Range
+        mDispatcher.mRangeIgnored = new RangeFileDispatcher(mData).setRangeSupported(false);
+        mDispatcher.mMode = RangeDispatcher.MODE_RANGE_IGNORED;
+        File file = new File(mFolder.getRoot(), "range-ignored.bin");
+        assertEquals(file, download("range-ignored.bin"));
+        assertArrayEquals(mData, AwaitDownloadCallback.readFile(file));
+        //最后一个请求从头下载
+        List<RecordedRequest> requests = mDispatcher.mRequests;
+        assertEquals(0, rangeStart(requests.get(requests.size() - 1)));
+    }
+
+    @Test
+    public void changedFileRestarts() throws Exception {
+        //下载过程中服务器上的文件换成了新版本，If-Range不匹配返回整个新文件
+        byte[] data = RangeFileDispatcher.randomData(FILE_SIZE, 5);
+        mDispatcher.mChanged = new RangeFileDispatcher(data).setETag("\"v2\"");
+        mDispatcher.mMode = RangeDispatcher.MODE_FILE_CHANGED;
+        File file = new File(mFolder.getRoot(), "changed.bin");
+        assertEquals(file, download("changed.bin"));
+        assertArrayEquals(data, AwaitDownloadCallback.readFile(file));
+        //重新探测了新文件
+        assertEquals(2, mDispatcher.mProbeCount.get());
+    }
+
+    private Object download(String name) throws InterruptedException {
+        AwaitDownloadCallback callback = new AwaitDownloadCallback();
+        DownloadDispatcher.getInstance().startDownload(mFolder.getRoot().getAbsolutePath(), name,
+                Collections.singletonList(mServer.url("/" + name).toString()), null,
+                DownloadTask.DownloadPriority.PRIORITY_NORMAL, null, callback);
+        return callback.await();
+    }
+
+    /**
+     * @return 请求的开始位置，没有Range时是0
+     */
+    private static long rangeStart(RecordedRequest request) {
+        String range = request.getHeader("Range");
+        if (range == null) {
+            return 0;
+        }
+        return Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    /**
+     * 探测请求和第一个区间正常返回，开始位置大于0的区间按模式返回异常的响应
+     */
+    private static class RangeDispatcher extends Dispatcher {
+        static final int MODE_NORMAL = 0;
+        /**
+         * 206 的Content-Range开始位置和请求的不一致
+         */
+        static final int MODE_WRONG_START = 1;
+        /**
+         * 忽略Range返回整个文件，ETag不变
+         */
+        static final int MODE_RANGE_IGNORED = 2;
+        /**
+         * 文件换成新版本，之后所有请求都由新版本响应
+         */
+        static final int MODE_FILE_CHANGED = 3;
+        private final RangeFileDispatcher mDelegate;
+        private final List<RecordedRequest> mRequests = new CopyOnWriteArrayList<>();
+        private final AtomicInteger mProbeCount = new AtomicInteger();
+        private RangeFileDispatcher mRangeIgnored;
+        private RangeFileDispatcher mChanged;
+        private volatile int mMode = MODE_NORMAL;
+        private volatile boolean isChanged;
+
+        RangeDispatcher(RangeFileDispatcher delegate) {
+            this.mDelegate = delegate;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            mRequests.add(request);
+            if ("bytes=0-".equals(request.getHeader("Range"))) {
+                mProbeCount.incrementAndGet();
+            }
+            long start = rangeStart(request);
+            if (mMode == MODE_FILE_CHANGED && (isChanged || start > 0)) {
+                isChanged = true;
+                return mChanged.dispatch(request);
+            }
+            if (start == 0) {
+                return mDelegate.dispatch(request);
+            }
+            switch (mMode) {
+                case MODE_WRONG_START:
+                    MockResponse response = mDelegate.dispatch(request);
+                    String contentRange = response.getHeaders().get("Content-Range");
+                    return response.setHeader("Content-Range", "bytes " + (start + 1) + contentRange.substring(contentRange.indexOf('-')));
+                case MODE_RANGE_IGNORED:
+                    return mRangeIgnored.dispatch(request);
+                default:
+                    return mDelegate.dispatch(request);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.steven.download.download;
+
+import org.junit.Test;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 探测请求的解析：206 从Content-Range读取大小，200 从响应体读取，HEAD 从响应头读取，无法解析时当作不支持Range
+ */
+public class RemoteFileTest {
+    private static final String URL = "http://localhost/remote.bin";
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    @Test
+    public void rangedProbe() {
+        RemoteFile remoteFile = RemoteFile.parse(newResponse(206, "GET", Protocol.HTTP_1_1)
+                .header("Content-Range", "bytes 0-999/1000")
+                .header("ETag", ETAG)
+                .body(newBody(1000))
+                .build());
+        assertEquals(1000, remoteFile.contentLength);
+        assertTrue(remoteFile.isRangeSupported);
+        assertFalse(remoteFile.isMultiplexed);
+        assertEquals(ETAG, remoteFile.getValidator());
+    }
+
+    @Test
+    public void rangeIgnored() {
+        //服务器忽略Range返回整个文件，大小取响应体的长度
+        RemoteFile remoteFile = RemoteFile.parse(newResponse(200, "GET", Protocol.HTTP_1_1)
+                .body(newBody(1000))
+                .build());
+        assertEquals(1000, remoteFile.contentLength);
+        assertFalse(remoteFile.isRangeSupported);
+    }
+
+    @Test
+    public void malformedContentRangeFallsBackToBody() {
+        RemoteFile remoteFile = RemoteFile.parse(newResponse(206, "GET", Protocol.HTTP_1_1)
+                .header("Content-Range", "bytes 0-999/*")
+                .body(newBody(1000))
+                .build());
+        assertEquals(1000, remoteFile.contentLength);
+        assertFalse(remoteFile.isRangeSupported);
+    }
+
+    @Test
+    public void headProbe() {
+        RemoteFile remoteFile = RemoteFile.parse(newResponse(200, "HEAD", Protocol.HTTP_1_1)
+                .header("Content-Length", "1000")
+                .header("Accept-Ranges", "bytes")
+                .build());
+        assertEquals(1000, remoteFile.contentLength);
+        assertTrue(remoteFile.isRangeSupported);
+
+        //没有Accept-Ranges时不支持Range
+        remoteFile = RemoteFile.parse(newResponse(200, "HEAD", Protocol.HTTP_1_1)
+                .header("Content-Length", "1000")
+                .build());
+        assertEquals(1000, remoteFile.contentLength);
+        assertFalse(remoteFile.isRangeSupported);
+
+        //大小未知时不能分段
+        remoteFile = RemoteFile.parse(newResponse(200, "HEAD", Protocol.HTTP_1_1)
+                .header("Content-Length", "unknown")
+                .header("Accept-Ranges", "bytes")
+                .build());
+        assertEquals(-1, remoteFile.contentLength);
+        assertFalse(remoteFile.isRangeSupported);
+    }
+
+    @Test
+    public void http2IsMultiplexed() {
+        RemoteFile remoteFile = RemoteFile.parse(newResponse(206, "GET", Protocol.HTTP_2)
+                .header("Content-Range", "bytes 0-999/1000")
+                .body(newBody(1000))
+                .build());
+        assertTrue(remoteFile.isMultiplexed);
+    }
+
+    @Test
+    public void weakETagNotUsedForIfRange() {
+        RemoteFile remoteFile = RemoteFile.parse(newResponse(206, "GET", Protocol.HTTP_1_1)
+                .header("Content-Range", "bytes 0-999/1000")
+                .header("ETag", "W/" + ETAG)
+                .header("Last-Modified", LAST_MODIFIED)
+                .body(newBody(1000))
+                .build());
+        assertEquals(LAST_MODIFIED, remoteFile.getValidator());
+        //弱ETag不参与同一文件的比较
+        assertTrue(remoteFile.isSameFile(1000, "\"v2\""));
+        assertFalse(remoteFile.isSameFile(2000, null));
+    }
+
+    @Test
+    public void parseTotalLength() {
+        assertEquals(1000, RemoteFile.parseTotalLength("bytes 0-999/1000"));
+        assertEquals(1000, RemoteFile.parseTotalLength("bytes 500-999/ 1000"));
+        assertEquals(-1, RemoteFile.parseTotalLength(null));
+        assertEquals(-1, RemoteFile.parseTotalLength(""));
+        assertEquals(-1, RemoteFile.parseTotalLength("bytes 0-999"));
+        assertEquals(-1, RemoteFile.parseTotalLength("bytes 0-999/"));
+        assertEquals(-1, RemoteFile.parseTotalLength("bytes 0-999/*"));
+        assertEquals(-1, RemoteFile.parseTotalLength("bytes 0-999/abc"));
+        assertEquals(-1, RemoteFile.parseTotalLength("bytes 0-999/-1000"));
+    }
+
+    @Test
+    public void parseRangeStart() {
+        assertEquals(0, RemoteFile.parseRangeStart("bytes 0-999/1000"));
+        assertEquals(500, RemoteFile.parseRangeStart("bytes 500-999/*"));
+        assertEquals(-1, RemoteFile.parseRangeStart(null));
+        assertEquals(-1, RemoteFile.parseRangeStart(""));
+        assertEquals(-1, RemoteFile.parseRangeStart("bytes -999/1000"));
+        assertEquals(-1, RemoteFile.parseRangeStart("bytes */1000"));
+        assertEquals(-1, RemoteFile.parseRangeStart("bytes abc-999/1000"));
+    }
+
+    private static Response.Builder newResponse(int code, String method, Protocol protocol) {
+        Request request = new Request.Builder()
+                .url(URL)
+                .method(method, null)
+                .header("Range", "bytes=0-")
+                .build();
+        return new Response.Builder()
+                .request(request)
+                .protocol(protocol)
+                .code(code)
+                .message(code == 206 ? "Partial Content" : "OK");
+    }
+
+    private static ResponseBody newBody(int length) {
+        return ResponseBody.create(null, new byte[length]);
+    }
+}
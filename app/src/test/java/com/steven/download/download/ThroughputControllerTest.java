@@ -0,0 +1,73 @@
+package com.steven.download.download;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 连接数控制器：速度随连接增加而提升时继续增加，没有提升时回收，饱和一段时间后重新试探
+ */
+public class ThroughputControllerTest {
+    private static final int MAX_THREAD_SIZE = 4;
+    private static final long INTERVAL = 2000;
+    private ThroughputController mController;
+    private long mNow;
+    private long mLength;
+
+    @Before
+    public void setUp() {
+        mController = new ThroughputController(MAX_THREAD_SIZE);
+        mNow = 1000;
+        //第一次采样只记录起点
+        assertEquals(ThroughputController.ACTION_KEEP, mController.sample(0, 1, mNow));
+    }
+
+    @Test
+    public void addWhileSpeedImproves() {
+        assertEquals(ThroughputController.ACTION_ADD, sample(1000, 1));
+        mController.onAdded(true);
+        assertEquals(ThroughputController.ACTION_ADD, sample(2000, 2));
+        mController.onAdded(true);
+        assertEquals(ThroughputController.ACTION_ADD, sample(3000, 3));
+        mController.onAdded(true);
+        //已经是最大连接数
+        assertEquals(ThroughputController.ACTION_KEEP, sample(4000, 4));
+    }
+
+    @Test
+    public void retireWhenAddDoesNotHelp() {
+        assertEquals(ThroughputController.ACTION_ADD, sample(1000, 1));
+        mController.onAdded(true);
+        //提升不到10%
+        assertEquals(ThroughputController.ACTION_RETIRE, sample(1050, 2));
+        //饱和后隔几次采样再试探
+        for (int i = 0; i < 4; i++) {
+            assertEquals(ThroughputController.ACTION_KEEP, sample(1050, 1));
+        }
+        assertEquals(ThroughputController.ACTION_ADD, sample(1050, 1));
+    }
+
+    @Test
+    public void skippedAddIsNotRetired() {
+        assertEquals(ThroughputController.ACTION_ADD, sample(1000, 2));
+        //没有可以拆分的区间，连接没有增加，速度没有提升也不能回收正在下载的连接
+        mController.onAdded(false);
+        assertEquals(ThroughputController.ACTION_ADD, sample(1000, 2));
+    }
+
+    @Test
+    public void keepBetweenSamples() {
+        mNow += INTERVAL / 2;
+        assertEquals(ThroughputController.ACTION_KEEP, mController.sample(1000, 1, mNow));
+    }
+
+    /**
+     * 经过一个采样间隔，期间以bytesPerSecond的速度下载
+     */
+    private int sample(long bytesPerSecond, int threadSize) {
+        mNow += INTERVAL;
+        mLength += bytesPerSecond * INTERVAL / 1000;
+        return mController.sample(mLength, threadSize, mNow);
+    }
+}
@@ -0,0 +1,103 @@
+package com.steven.download.transfer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 全局限速：预支令牌时按份额的速度计算等待时间，多个任务按权重分配速度
+ */
+public class BandwidthLimiterTest {
+    private static final long RATE = 4000;
+    private final List<BandwidthLimiter.Share> mShares = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        //全局实例，恢复不限速并归还所有权重，不影响其它测试
+        for (BandwidthLimiter.Share share : mShares) {
+            share.release();
+        }
+        BandwidthLimiter.getInstance().setRate(0);
+    }
+
+    @Test
+    public void unlimitedNeverWaits() {
+        BandwidthLimiter.getInstance().setRate(0);
+        BandwidthLimiter.Share share = register(1);
+        assertEquals(0, share.reserve(1024 * 1024));
+        assertEquals(0, share.reserve(1024 * 1024));
+    }
+
+    @Test
+    public void reserveReturnsDelay() {
+        BandwidthLimiter.getInstance().setRate(RATE);
+        BandwidthLimiter.Share share = register(1);
+        //新的份额没有积攒令牌，一秒的数据需要等待约一秒
+        assertDelay(1000, share.reserve(RATE));
+        //透支继续累加
+        assertDelay(1500, share.reserve(RATE / 2));
+    }
+
+    @Test
+    public void sharesSplitByWeight() {
+        BandwidthLimiter.getInstance().setRate(RATE);
+        BandwidthLimiter.Share low = register(1);
+        BandwidthLimiter.Share high = register(3);
+        //权重1分得1/4的速度，权重3分得3/4
+        assertDelay(1000, low.reserve(RATE / 4));
+        assertDelay(1000, high.reserve(RATE * 3 / 4));
+        //归还权重后剩下的任务分得全部速度，之前的透支按新的速度偿还
+        low.release();
+        assertDelay(1750, high.reserve(RATE));
+    }
+
+    @Test
+    public void burstIsCapped() throws Exception {
+        BandwidthLimiter.getInstance().setRate(RATE);
+        BandwidthLimiter.Share share = register(1);
+        //空闲一段时间后最多积攒250ms的令牌
+        Thread.sleep(500);
+        assertEquals(0, share.reserve(RATE / 4));
+        assertDelay(250, share.reserve(RATE / 4));
+    }
+
+    @Test
+    public void cancelLimitClearsDebt() {
+        BandwidthLimiter.getInstance().setRate(RATE);
+        BandwidthLimiter.Share share = register(1);
+        assertTrue(share.reserve(RATE) > 0);
+        BandwidthLimiter.getInstance().setRate(0);
+        assertEquals(0, share.reserve(RATE));
+        //重新限速时不再背着之前的透支
+        BandwidthLimiter.getInstance().setRate(RATE);
+        assertDelay(1000, share.reserve(RATE));
+    }
+
+    @Test
+    public void acquireBlocks() throws Exception {
+        BandwidthLimiter.getInstance().setRate(RATE);
+        BandwidthLimiter.Share share = register(1);
+        long start = System.currentTimeMillis();
+        share.acquire(RATE / 5);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("elapsed " + elapsed, elapsed >= 150);
+    }
+
+    private BandwidthLimiter.Share register(int weight) {
+        BandwidthLimiter.Share share = BandwidthLimiter.getInstance().register(weight);
+        mShares.add(share);
+        return share;
+    }
+
+    /**
+     * 等待时间不超过期望值，测试本身的耗时会让它稍微短一些
+     */
+    private static void assertDelay(long expected, long delay) {
+        assertTrue("delay " + delay + ", expected " + expected, delay <= expected && delay > expected - 100);
+    }
+}
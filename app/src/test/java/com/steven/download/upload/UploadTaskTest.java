@@ -0,0 +1,150 @@
+package com.steven.download.upload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分片上传失败后续传，只上传服务器没有确认的分片
+ */
+public class UploadTaskTest {
+    private static final int PART_SIZE = 256 * 1024;
+    private static final int PART_COUNT = 8;
+    private static final int FAILED_PART = 5;
+    private static final Pattern PART_INDEX = Pattern.compile("name=\"partIndex\"\r\n(?:[^\r\n]+\r\n)*\r\n(\\d+)\r\n");
+    private static final Pattern UPLOAD_ID = Pattern.compile("name=\"uploadId\"\r\n(?:[^\r\n]+\r\n)*\r\n([^\r\n]+)\r\n");
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private MockWebServer mServer;
+    /**
+     * 服务器接受的分片 {uploadId, partIndex}
+     */
+    private final List<String[]> mAcceptedParts = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean isFailed = new AtomicBoolean();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String body = request.getBody().readUtf8();
+                Matcher partIndex = PART_INDEX.matcher(body);
+                Matcher uploadId = UPLOAD_ID.matcher(body);
+                if (!partIndex.find() || !uploadId.find()) {
+                    return new MockResponse().setResponseCode(400);
+                }
+                //第一次收到FAILED_PART时拒绝
+                if (Integer.parseInt(partIndex.group(1)) == FAILED_PART && !isFailed.getAndSet(true)) {
+                    return new MockResponse().setResponseCode(500);
+                }
+                mAcceptedParts.add(new String[]{uploadId.group(1), partIndex.group(1)});
+                return new MockResponse();
+            }
+        });
+        mServer.start();
+        //一个分片线程，按顺序上传
+        UploadDispatcher.getInstance().setPartSize(PART_SIZE).setMaxPartThreadSize(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        UploadDispatcher.getInstance().setPartSize(0);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void resumeUploadsMissingParts() throws Exception {
+        String folder = mFolder.getRoot().getAbsolutePath();
+        byte[] data = new byte[PART_SIZE * PART_COUNT];
+        Arrays.fill(data, (byte) 'a');
+        FileOutputStream out = new FileOutputStream(new File(folder, "upload.bin"));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        String url = mServer.url("/upload").toString();
+
+        Object firstResult = upload(folder, url);
+        assertTrue(String.valueOf(firstResult), firstResult instanceof Exception);
+        assertTrue(new File(folder, ".upload.bin.upload").exists());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), partIndexes(0));
+
+        int firstCount = mAcceptedParts.size();
+        assertEquals(new File(folder, "upload.bin"), upload(folder, url));
+        assertFalse(new File(folder, ".upload.bin.upload").exists());
+        //续传只上传没有确认的分片，并且服务器看到的是同一次上传
+        assertEquals(Arrays.asList("5", "6", "7"), partIndexes(firstCount));
+        for (String[] part : mAcceptedParts) {
+            assertEquals(mAcceptedParts.get(0)[0], part[0]);
+        }
+    }
+
+    private Object upload(String folder, String url) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        UploadDispatcher.getInstance().startUpload(folder, "upload.bin", url, new UploadCallback() {
+            @Override
+            public void onStart(String fileName, int status) {
+
+            }
+
+            @Override
+            public void onProgress(long currentLength, long totalLength) {
+
+            }
+
+            @Override
+            public void onSuccess(File file) {
+                result[0] = file;
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result[0] = e;
+                latch.countDown();
+            }
+
+            @Override
+            public void onPause(File file) {
+                result[0] = "paused";
+                latch.countDown();
+            }
+        });
+        assertTrue("upload timeout", latch.await(60, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private List<String> partIndexes(int from) {
+        List<String> indexes = new ArrayList<>();
+        for (String[] part : mAcceptedParts.subList(from, mAcceptedParts.size())) {
+            indexes.add(part[1]);
+        }
+        return indexes;
+    }
+}
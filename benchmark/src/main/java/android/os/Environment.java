@@ -0,0 +1,13 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * JVM上运行benchmark时代替android.os.Environment，外部存储目录使用系统临时目录
+ */
+public class Environment {
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,11 @@
+package android.text;
+
+/**
+ * JVM上运行benchmark时代替android.text.TextUtils，只实现下载代码用到的方法
+ */
+public class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
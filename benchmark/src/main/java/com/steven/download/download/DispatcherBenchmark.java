@@ -0,0 +1,112 @@
+package com.steven.download.download;
+
+import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.TransferExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 通过DownloadDispatcher提交一批任务直到全部下载完成，包括探测请求、排队、名额的占用和释放以及区间下载，
+ * 小于小文件阈值的文件走单连接的路径
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatcherBenchmark {
+    /**
+     * 等待一批任务完成的最长时间
+     */
+    private static final long TIMEOUT = 60;
+
+    @Param({"8", "32"})
+    public int taskCount;
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    @Param({"3", "5"})
+    public int maxTaskSize;
+
+    private RangeFileServer mServer;
+    private File mFolder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new RangeFileServer(fileSize);
+        mServer.start();
+        mFolder = new File(System.getProperty("java.io.tmpdir"), "download-benchmark-dispatcher");
+        mFolder.mkdirs();
+        DownloadDispatcher.getInstance().setMaxTaskSize(maxTaskSize);
+    }
+
+    /**
+     * 每次都从头下载，不从上一次的文件续传
+     */
+    @Setup(Level.Invocation)
+    public void deleteFiles() {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mServer.shutdown();
+        deleteFiles();
+        //传输线程和OkHttp执行异步探测请求的线程都不是守护线程，不关闭线程池时fork要等JMH超时才能退出
+        OkHttpManager.getInstance().getDownloadClient().dispatcher().executorService().shutdown();
+        TransferExecutor.getInstance().shutdown();
+        TransferExecutor.getInstance().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public int startDownload() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(taskCount);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int i = 0; i < taskCount; i++) {
+            DownloadDispatcher.getInstance().startDownload(mFolder.getAbsolutePath(), "task-" + i, mServer.url("/task-" + i), new NoOpCallback() {
+                @Override
+                public void onSuccess(File file) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    failure.set(e);
+                    latch.countDown();
+                }
+            });
+        }
+        if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("downloads not finished in " + TIMEOUT + "s");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return taskCount;
+    }
+}
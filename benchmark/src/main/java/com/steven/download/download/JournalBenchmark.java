@@ -0,0 +1,166 @@
+package com.steven.download.download;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 断点保存的开销：只写断点日志的一条记录、同步文件后再记录的完整检查点、续传时重新打开日志
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JournalBenchmark {
+    private static final long CONTENT_LENGTH = 1024L * 1024 * 1024;
+    private static final String VALIDATOR = "\"benchmark\"";
+    /**
+     * 检查点写入的数据在文件中循环覆盖的范围
+     */
+    private static final long DATA_FILE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * 每个区间占用一个槽位的断点日志
+     */
+    @State(Scope.Benchmark)
+    public static class JournalState {
+        @Param({"1", "8", "16"})
+        public int segmentCount;
+
+        private File mFile;
+        private DownloadJournal mJournal;
+        private long mRangeSize;
+        private int mSlot;
+        private long mPosition;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mFile = new File(folder(), ".journal-benchmark.journal");
+            mFile.delete();
+            mJournal = new DownloadJournal(mFile, CONTENT_LENGTH, VALIDATOR);
+            mRangeSize = CONTENT_LENGTH / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                mJournal.newSlot(i * mRangeSize, (i + 1) * mRangeSize - 1);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mJournal.delete();
+        }
+
+        /**
+         * 轮流推进每个区间的进度
+         *
+         * @return 槽位
+         */
+        int nextSlot(long length) {
+            mSlot = (mSlot + 1) % segmentCount;
+            if (mSlot == 0) {
+                mPosition = (mPosition + length) % mRangeSize;
+            }
+            return mSlot;
+        }
+
+        long positionOf(int slot) {
+            return slot * mRangeSize + mPosition;
+        }
+
+        long endOf(int slot) {
+            return (slot + 1) * mRangeSize - 1;
+        }
+    }
+
+    /**
+     * 两次检查点之间写入的数据
+     */
+    @State(Scope.Benchmark)
+    public static class DataState {
+        @Param({"65536", "4194304"})
+        public int checkpointLength;
+
+        private File mFile;
+        private RandomAccessFile mRandomAccessFile;
+        private FileChannel mFileChannel;
+        private ByteBuffer mData;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            mFile = new File(folder(), "journal-benchmark.bin");
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mFileChannel = mRandomAccessFile.getChannel();
+            mData = ByteBuffer.allocateDirect(checkpointLength);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            mFileChannel.close();
+            mRandomAccessFile.close();
+            mFile.delete();
+        }
+    }
+
+    private static File folder() {
+        File folder = new File(System.getProperty("java.io.tmpdir"), "download-benchmark");
+        folder.mkdirs();
+        return folder;
+    }
+
+    /**
+     * 只写日志的一条记录，不同步
+     */
+    @Benchmark
+    public int record(JournalState state) throws IOException {
+        int slot = state.nextSlot(64 * 1024);
+        state.mJournal.record(slot, state.positionOf(slot), state.endOf(slot));
+        return slot;
+    }
+
+    /**
+     * DownloadRunnable的检查点：写入一段数据，同步文件，再记录进度
+     */
+    @Benchmark
+    public int checkpoint(JournalState state, DataState data) throws IOException {
+        int slot = state.nextSlot(data.checkpointLength);
+        long position = state.positionOf(slot);
+        long filePosition = position % (DATA_FILE_SIZE - data.checkpointLength);
+        data.mData.clear();
+        while (data.mData.hasRemaining()) {
+            data.mFileChannel.write(data.mData, filePosition + data.mData.position());
+        }
+        data.mFileChannel.force(false);
+        state.mJournal.record(slot, position + data.checkpointLength, state.endOf(slot));
+        return slot;
+    }
+
+    /**
+     * 续传时读出整个日志
+     */
+    @Benchmark
+    public int reopen(JournalState state) throws IOException {
+        DownloadJournal journal = new DownloadJournal(state.mFile, CONTENT_LENGTH, VALIDATOR);
+        try {
+            return journal.getRanges().size();
+        } finally {
+            journal.close();
+        }
+    }
+}
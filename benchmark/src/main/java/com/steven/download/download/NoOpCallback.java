@@ -0,0 +1,30 @@
+package com.steven.download.download;
+
+import java.io.File;
+
+/**
+ * 不做任何事的下载回调，benchmark只测量回调之前的开销
+ */
+class NoOpCallback implements DownloadCallback {
+    static final NoOpCallback INSTANCE = new NoOpCallback();
+
+    @Override
+    public void onStart(String fileName, int status) {
+    }
+
+    @Override
+    public void onProgress(long currentLength, long totalLength) {
+    }
+
+    @Override
+    public void onSuccess(File file) {
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+    }
+
+    @Override
+    public void onPause(File file) {
+    }
+}
@@ -0,0 +1,64 @@
+package com.steven.download.download;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个下载线程同时累加进度，每写入一个buffer调用一次，比较回调频率对竞争的影响
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressAggregatorBenchmark {
+    /**
+     * 足够大，测量期间不会下载完
+     */
+    private static final long TOTAL_LENGTH = Long.MAX_VALUE / 2;
+
+    /**
+     * 每次写入的长度，和buffer大小一致
+     */
+    @Param({"8192", "65536"})
+    public int length;
+
+    /**
+     * 回调的最小时间间隔 ms，0 表示每次都回调
+     */
+    @Param({"0", "200"})
+    public long interval;
+
+    private ProgressAggregator mAggregator;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mAggregator = new ProgressAggregator(0, TOTAL_LENGTH, interval, 0.01f, NoOpCallback.INSTANCE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addSingleThread() {
+        mAggregator.add(length);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void addEightThreads() {
+        mAggregator.add(length);
+    }
+}
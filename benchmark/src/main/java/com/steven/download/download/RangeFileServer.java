@@ -0,0 +1,80 @@
+package com.steven.download.download;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * 进程内的下载服务器，所有路径返回同一个随机内容的文件，支持Range请求，benchmark测量的是客户端的读写而不是网络
+ */
+class RangeFileServer {
+    /**
+     * MockWebServer每个请求都输出一行日志，持有引用避免设置的级别随Logger被回收
+     */
+    private static final Logger LOGGER = Logger.getLogger(MockWebServer.class.getName());
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final MockWebServer mServer = new MockWebServer();
+    private final byte[] mData;
+
+    RangeFileServer(int fileSize) {
+        mData = new byte[fileSize];
+        new Random(fileSize).nextBytes(mData);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request.getHeader("Range"));
+            }
+        });
+    }
+
+    void start() throws IOException {
+        mServer.start();
+    }
+
+    void shutdown() throws IOException {
+        mServer.shutdown();
+    }
+
+    /**
+     * 文件的地址，path不同时文件内容相同
+     */
+    String url(String path) {
+        return mServer.url(path).toString();
+    }
+
+    int getFileSize() {
+        return mData.length;
+    }
+
+    private MockResponse respond(String range) {
+        MockResponse response = new MockResponse()
+                .setHeader("ETag", "\"" + mData.length + "\"")
+                .setHeader("Accept-Ranges", "bytes");
+        long start = 0;
+        long end = mData.length - 1;
+        if (range != null && range.startsWith("bytes=")) {
+            //Range: bytes=start-end 或者 bytes=start-
+            String[] values = range.substring(6).split("-");
+            start = Long.parseLong(values[0]);
+            if (values.length > 1 && !values[1].isEmpty()) {
+                end = Math.min(Long.parseLong(values[1]), mData.length - 1);
+            }
+            response.setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + mData.length);
+        }
+        Buffer body = new Buffer();
+        body.write(mData, (int) start, (int) (end - start + 1));
+        return response.setBody(body);
+    }
+}
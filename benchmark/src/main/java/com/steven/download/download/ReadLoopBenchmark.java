@@ -0,0 +1,145 @@
+package com.steven.download.download;
+
+import com.steven.download.okhttp.OkHttpManager;
+import com.steven.download.transfer.BufferPool;
+import com.steven.download.transfer.TransferExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Response;
+
+/**
+ * 不经过探测和排队，直接用一个DownloadTask下载整个文件：DownloadRunnable从池中的buffer读取响应、按位置写入共用的文件、
+ * 定期同步并记录断点、区间窃取和连接数调整都是真实的代码。比较buffer大小、最大连接数、文件大小、写入方式和下载引擎
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadLoopBenchmark {
+    /**
+     * 等待下载完成的最长时间
+     */
+    private static final long TIMEOUT = 60;
+
+    @Param({"4194304", "33554432"})
+    public int fileSize;
+
+    @Param({"1", "4", "8"})
+    public int maxThreadSize;
+
+    @Param({"8192", "65536", "262144"})
+    public int bufferSize;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    /**
+     * {@link DownloadDispatcher.DownloadEngine}，1 线程池，2 非阻塞
+     */
+    @Param({"1", "2"})
+    public int engine;
+
+    private RangeFileServer mServer;
+    private String mUrl;
+    private RemoteFile mRemoteFile;
+    private File mFolder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new RangeFileServer(fileSize);
+        mServer.start();
+        mUrl = mServer.url("/read-loop");
+        BufferPool.getInstance().setBufferSize(bufferSize);
+        //任务创建时读取调度器的设置
+        DownloadDispatcher.getInstance()
+                .setMaxThreadSize(maxThreadSize)
+                .setMappedWriteThreshold(mapped ? 0 : Long.MAX_VALUE)
+                .setEngine(engine);
+        //文件信息只探测一次，每次调用都用同样的信息创建任务
+        Response response = OkHttpManager.getInstance().asyncProbeCall(mUrl).execute();
+        try {
+            mRemoteFile = RemoteFile.parse(response);
+        } finally {
+            response.close();
+        }
+        mFolder = new File(System.getProperty("java.io.tmpdir"), "download-benchmark-read-loop");
+        mFolder.mkdirs();
+    }
+
+    /**
+     * 每次从空文件开始下载，不从上一次的断点续传
+     */
+    @Setup(Level.Invocation)
+    public void deleteFiles() {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mServer.shutdown();
+        deleteFiles();
+        //传输线程不是守护线程，不关闭线程池时fork要等JMH超时才能退出
+        TransferExecutor.getInstance().shutdown();
+        TransferExecutor.getInstance().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        DownloadTask task = new DownloadTask(mFolder.getAbsolutePath(), "read-loop.bin", Collections.singletonList(mUrl), mRemoteFile,
+                null, null, new NoOpCallback() {
+            @Override
+            public void onSuccess(File file) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+                latch.countDown();
+            }
+
+            @Override
+            public void onPause(File file) {
+                failure.set(new IOException("download paused"));
+                latch.countDown();
+            }
+        });
+        task.init();
+        if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("download not finished in " + TIMEOUT + "s");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return fileSize;
+    }
+}